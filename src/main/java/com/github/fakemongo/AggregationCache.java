@@ -0,0 +1,176 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.util.JSON;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of the last aggregations of a {@link Fongo}, by collection and pipeline : an aggregation run again gets
+ * them back while its collection is not written. The least recently used results are evicted past the max number of
+ * entries.
+ * <p/>
+ * Usage:
+ * <pre>
+ * {@code
+ * fongo.setAggregationCacheSize(100);
+ * ...
+ * long hits = fongo.getAggregationCache().getHitCount();
+ * }
+ * </pre>
+ * The pipelines reading or writing other collections ($lookup, $out) are not cached.
+ */
+public final class AggregationCache {
+  /**
+   * Bigger results are not kept.
+   */
+  public static final int MAX_DOCUMENTS = 10000;
+
+  private final int maxEntries;
+  private final Map<Key, CachedResults> entries;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  AggregationCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<Key, CachedResults>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedResults> eldest) {
+        if (size() > maxEntries) {
+          evictionCount++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return false if the results are never kept.
+   */
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * @return true if the results of the pipeline can be kept : it only reads its collection.
+   */
+  public boolean canCache(List<DBObject> pipeline) {
+    return isEnabled() && !containsKey(pipeline, "$lookup") && !containsKey(pipeline, "$out");
+  }
+
+  /**
+   * @param version the version of the collection, see {@link FongoDBCollection#getVersion()}.
+   * @return copies of the results, null if they are not kept or the collection was written since.
+   */
+  public synchronized List<DBObject> get(FongoDBCollection collection, long version, List<DBObject> pipeline) {
+    Key key = new Key(collection, pipeline);
+    CachedResults entry = entries.get(key);
+    if (entry == null || entry.version != version) {
+      if (entry != null) {
+        entries.remove(key);
+      }
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return copy(entry.results);
+  }
+
+  /**
+   * @param version the version of the collection when the results were computed.
+   * @param results the results, not shared with the caller.
+   */
+  public synchronized void put(FongoDBCollection collection, long version, List<DBObject> pipeline, List<DBObject> results) {
+    if (isEnabled() && results.size() <= MAX_DOCUMENTS) {
+      entries.put(new Key(collection, pipeline), new CachedResults(version, results));
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return the number of results kept.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static List<DBObject> copy(List<DBObject> documents) {
+    List<DBObject> copies = new ArrayList<DBObject>(documents.size());
+    for (DBObject document : documents) {
+      copies.add(Util.clone(document));
+    }
+    return copies;
+  }
+
+  private static boolean containsKey(Object value, String key) {
+    if (value instanceof List) {
+      for (Object element : (List) value) {
+        if (containsKey(element, key)) {
+          return true;
+        }
+      }
+    } else if (value instanceof DBObject) {
+      DBObject object = (DBObject) value;
+      for (String field : object.keySet()) {
+        if (field.equals(key) || containsKey(object.get(field), key)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A collection, compared by identity, and a pipeline, compared by its JSON.
+   */
+  private static final class Key {
+    private final FongoDBCollection collection;
+    private final String pipeline;
+
+    Key(FongoDBCollection collection, List<DBObject> pipeline) {
+      this.collection = collection;
+      this.pipeline = JSON.serialize(pipeline);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && collection == ((Key) o).collection && pipeline.equals(((Key) o).pipeline);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(collection) + pipeline.hashCode();
+    }
+  }
+
+  private static final class CachedResults {
+    private final long version;
+    private final List<DBObject> results;
+
+    CachedResults(long version, List<DBObject> results) {
+      this.version = version;
+      this.results = results;
+    }
+  }
+}
@@ -1,11 +1,14 @@
 package com.github.fakemongo;
 
+import com.github.fakemongo.impl.MongoDump;
+import com.github.fakemongo.impl.Snapshot;
 import com.mongodb.DB;
 import com.mongodb.FongoDB;
 import com.mongodb.MockMongoClient;
 import com.mongodb.MongoClient;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -35,17 +38,33 @@ import java.util.Map;
 public class Fongo {
 
   private final Map<String, FongoDB> dbMap = Collections.synchronizedMap(new HashMap<String, FongoDB>());
+  // Databases at the last mark, null before.
+  private Map<String, FongoDB> marked;
   private final ServerAddress serverAddress;
   private final MongoClient mongo;
   private final String name;
+  private final StorageEngine storageEngine;
+  private volatile AggregationCache aggregationCache = new AggregationCache(0);
 
   /**
    * @param name Used only for a nice toString in case you have multiple instances
    */
   public Fongo(String name) {
+    this(name, StorageEngine.heap());
+  }
+
+  /**
+   * @param name          Used only for a nice toString in case you have multiple instances
+   * @param storageEngine how the documents are kept, see {@link StorageEngine}.
+   */
+  public Fongo(String name, StorageEngine storageEngine) {
     this.name = name;
+    this.storageEngine = storageEngine;
     this.serverAddress = new ServerAddress(new InetSocketAddress(ServerAddress.defaultPort()));
     this.mongo = createMongo();
+    for (String dbName : storageEngine.databaseNames()) {
+      getDB(dbName);
+    }
   }
 
   /**
@@ -96,6 +115,100 @@ public class Fongo {
     }
   }
 
+  /**
+   * Mark the current state of the databases : from now on, each write is logged to be undone by {@link #rollback()}.
+   * Much faster than dropping and inserting a fixture again when only a few documents are written.
+   */
+  public void mark() {
+    synchronized (dbMap) {
+      marked = new HashMap<String, FongoDB>(dbMap);
+      for (FongoDB db : marked.values()) {
+        db.mark();
+      }
+    }
+  }
+
+  /**
+   * Go back to the state of the last {@link #mark()} : the writes are undone, the databases and collections created
+   * since are dropped. The mark stays, for the next rollback.
+   */
+  public void rollback() {
+    synchronized (dbMap) {
+      if (marked == null) {
+        throw new FongoException("no mark to rollback to");
+      }
+      for (String dbName : new ArrayList<String>(dbMap.keySet())) {
+        if (marked.get(dbName) != dbMap.get(dbName)) {
+          dropDatabase(dbName);
+        }
+      }
+      dbMap.putAll(marked);
+      for (FongoDB db : marked.values()) {
+        db.rollback();
+      }
+    }
+  }
+
+  /**
+   * A new Fongo with the same databases, created without copying anything : a collection is shared until its first
+   * write, in this Fongo or in the fork. Only the {@link StorageEngine#heap()} and {@link StorageEngine#bson()} storage
+   * engines can fork.
+   *
+   * @return the fork.
+   */
+  public Fongo fork() {
+    if (!storageEngine.canFork()) {
+      throw new FongoException("can't fork a Fongo using " + storageEngine);
+    }
+    Fongo fork = new Fongo(name, storageEngine);
+    synchronized (dbMap) {
+      for (FongoDB db : dbMap.values()) {
+        fork.dbMap.put(db.getName(), new FongoDB(fork, db));
+      }
+    }
+    return fork;
+  }
+
+  /**
+   * Write all the databases, their collections and indexes in a file, to {@link #restore(File)} them later : much faster
+   * than inserting the documents again. The writes wait for the end of the snapshot.
+   *
+   * @param file the file to write.
+   */
+  public void snapshot(File file) {
+    Snapshot.write(this, file);
+  }
+
+  /**
+   * Replace all the databases by the ones of a {@link #snapshot(File)}.
+   *
+   * @param file a file written by {@link #snapshot(File)}.
+   */
+  public void restore(File file) {
+    Snapshot.read(this, file);
+  }
+
+  /**
+   * Read a directory written by <code>mongodump</code> (or {@link #exportDump(File)}) : the documents of each
+   * <code>collection.bson</code>, the indexes of each <code>collection.metadata.json</code>. The collections read are
+   * dropped first, like with <code>mongorestore --drop</code>.
+   *
+   * @param directory the dump directory, with a directory by database, or the directory of one database.
+   */
+  public void importDump(File directory) {
+    MongoDump.read(this, directory);
+  }
+
+  /**
+   * Write all the databases like <code>mongodump</code> does : a directory by database, a <code>.bson</code> and a
+   * <code>.metadata.json</code> file by collection.
+   *
+   * @param directory the dump directory.
+   */
+  public void exportDump(File directory) {
+    MongoDump.write(this, directory);
+  }
+
   /**
    * This will always be localhost:27017
    *
@@ -115,6 +228,30 @@ public class Fongo {
     return this.mongo;
   }
 
+  /**
+   * Keep the results of the last aggregations, given back while their collection is not written : for the same
+   * pipelines run many times on the same data. Disabled by default.
+   *
+   * @param maxEntries max number of results kept, 0 to disable the cache.
+   */
+  public void setAggregationCacheSize(int maxEntries) {
+    if (maxEntries < 0) {
+      throw new IllegalArgumentException("maxEntries must be positive or 0 : " + maxEntries);
+    }
+    this.aggregationCache = new AggregationCache(maxEntries);
+  }
+
+  /**
+   * @return the cache of the aggregations, with its metrics.
+   */
+  public AggregationCache getAggregationCache() {
+    return aggregationCache;
+  }
+
+  public StorageEngine getStorageEngine() {
+    return storageEngine;
+  }
+
   public WriteConcern getWriteConcern() {
     return mongo.getWriteConcern();
   }
@@ -0,0 +1,265 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.storage.BsonDocumentStore;
+import com.github.fakemongo.impl.storage.DocumentStore;
+import com.github.fakemongo.impl.storage.HeapDocumentStore;
+import com.github.fakemongo.impl.storage.Journal;
+import com.github.fakemongo.impl.storage.JournaledDocumentStore;
+import com.github.fakemongo.impl.storage.MappedDocumentStore;
+import com.github.fakemongo.impl.storage.OffHeapDocumentStore;
+import com.mongodb.DBCollection;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * How a {@link Fongo} keeps the documents of its collections.
+ * <p/>
+ * Usage:
+ * <pre>
+ * {@code
+ * Fongo fongo = new Fongo("test server", StorageEngine.bson());
+ * }
+ * </pre>
+ */
+public abstract class StorageEngine {
+
+  private static final StorageEngine HEAP = new StorageEngine("heap") {
+    @Override
+    public DocumentStore createStore(DBCollection collection) {
+      return new HeapDocumentStore(collection);
+    }
+
+    @Override
+    boolean canFork() {
+      return true;
+    }
+  };
+
+  private static final StorageEngine BSON = new StorageEngine("bson") {
+    @Override
+    public DocumentStore createStore(DBCollection collection) {
+      return new BsonDocumentStore(collection);
+    }
+
+    @Override
+    boolean canFork() {
+      return true;
+    }
+  };
+
+  private final String name;
+
+  StorageEngine(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Documents are kept as java objects (the default) : fast, but each document costs many times its BSON size.
+   *
+   * @return the heap storage engine.
+   */
+  public static StorageEngine heap() {
+    return HEAP;
+  }
+
+  /**
+   * Documents are kept encoded in BSON and decoded at each read : slower, but much more compact.
+   *
+   * @return the BSON storage engine.
+   */
+  public static StorageEngine bson() {
+    return BSON;
+  }
+
+  /**
+   * Documents are kept encoded in BSON, out of the java heap : the GC doesn't have to walk through them.
+   *
+   * @return the off-heap storage engine, with slabs of {@link OffHeapDocumentStore#DEFAULT_SLAB_SIZE} bytes.
+   */
+  public static StorageEngine offHeap() {
+    return offHeap(OffHeapDocumentStore.DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * @param slabSize size of the direct buffers allocated for the documents.
+   * @return the off-heap storage engine.
+   */
+  public static StorageEngine offHeap(final int slabSize) {
+    if (slabSize <= 0) {
+      throw new IllegalArgumentException("slabSize must be positive : " + slabSize);
+    }
+    return new StorageEngine("offHeap") {
+      @Override
+      public DocumentStore createStore(DBCollection collection) {
+        return new OffHeapDocumentStore(collection, slabSize);
+      }
+    };
+  }
+
+  /**
+   * Documents are kept in memory mapped files, in a directory by database : <code>directory/dbName/collection.N</code>.
+   * A new Fongo on the same directory finds back the databases, their collections and indexes.
+   * <p/>
+   * {@link #close()} the engine, once the writes are done, to force the files on disk.
+   *
+   * @param directory where to put the files.
+   * @return the mapped storage engine, with files of {@link MappedDocumentStore#DEFAULT_FILE_SIZE} bytes.
+   */
+  public static StorageEngine mapped(File directory) {
+    return mapped(directory, MappedDocumentStore.DEFAULT_FILE_SIZE);
+  }
+
+  /**
+   * @param directory where to put the files.
+   * @param fileSize  size of the files, created sparse.
+   * @return the mapped storage engine.
+   */
+  public static StorageEngine mapped(final File directory, final int fileSize) {
+    if (fileSize <= 0) {
+      throw new IllegalArgumentException("fileSize must be positive : " + fileSize);
+    }
+    return new StorageEngine("mapped " + directory) {
+      private final Set<MappedDocumentStore> stores = Collections.newSetFromMap(new WeakHashMap<MappedDocumentStore, Boolean>());
+
+      @Override
+      public DocumentStore createStore(DBCollection collection) {
+        File dbDirectory = new File(directory, MappedDocumentStore.fileName(collection.getDB().getName()));
+        MappedDocumentStore store = new MappedDocumentStore(collection, dbDirectory, fileSize);
+        synchronized (stores) {
+          stores.add(store);
+        }
+        return store;
+      }
+
+      @Override
+      public void close() {
+        List<MappedDocumentStore> toForce;
+        synchronized (stores) {
+          toForce = new ArrayList<MappedDocumentStore>(stores);
+        }
+        for (MappedDocumentStore store : toForce) {
+          store.force();
+        }
+      }
+
+      @Override
+      public List<String> databaseNames() {
+        return MappedDocumentStore.databaseNames(directory);
+      }
+
+      @Override
+      public List<String> collectionNames(String dbName) {
+        return MappedDocumentStore.collectionNames(new File(directory, MappedDocumentStore.fileName(dbName)));
+      }
+    };
+  }
+
+  /**
+   * Like {@link #mapped(File)}, but the writes are also appended to a journal, <code>directory/fongo.journal</code>,
+   * replayed when the directory is opened again : the files are found back after a crash of the system. Writes with a
+   * {@link com.mongodb.WriteConcern} <code>j</code> or <code>fsync</code> wait for the journal to be on disk.
+   * <p/>
+   * {@link #close()} the engine before opening the directory again.
+   *
+   * @param directory where to put the files.
+   * @return the journaled storage engine, flushing its journal every {@link Journal#DEFAULT_COMMIT_INTERVAL} ms.
+   */
+  public static StorageEngine journaled(File directory) {
+    return journaled(directory, MappedDocumentStore.DEFAULT_FILE_SIZE, Journal.DEFAULT_COMMIT_INTERVAL);
+  }
+
+  /**
+   * @param directory      where to put the files.
+   * @param fileSize       size of the files, created sparse.
+   * @param commitInterval max time in milliseconds between two flushes of the journal.
+   * @return the journaled storage engine.
+   */
+  public static StorageEngine journaled(final File directory, final int fileSize, final long commitInterval) {
+    if (fileSize <= 0) {
+      throw new IllegalArgumentException("fileSize must be positive : " + fileSize);
+    }
+    if (commitInterval <= 0) {
+      throw new IllegalArgumentException("commitInterval must be positive : " + commitInterval);
+    }
+    return new StorageEngine("journaled " + directory) {
+      private Journal journal;
+
+      @Override
+      public DocumentStore createStore(DBCollection collection) {
+        File dbDirectory = new File(directory, MappedDocumentStore.fileName(collection.getDB().getName()));
+        return new JournaledDocumentStore(collection, dbDirectory, fileSize, journal());
+      }
+
+      @Override
+      public List<String> databaseNames() {
+        // The files must be replayed before being read.
+        journal();
+        return MappedDocumentStore.databaseNames(directory);
+      }
+
+      @Override
+      public List<String> collectionNames(String dbName) {
+        return MappedDocumentStore.collectionNames(new File(directory, MappedDocumentStore.fileName(dbName)));
+      }
+
+      @Override
+      public synchronized void close() {
+        if (journal != null) {
+          journal.close();
+          journal = null;
+        }
+      }
+
+      private synchronized Journal journal() {
+        if (journal == null) {
+          journal = new Journal(directory, commitInterval);
+        }
+        return journal;
+      }
+    };
+  }
+
+  /**
+   * @return names of the databases kept from a previous run.
+   */
+  public List<String> databaseNames() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * @param dbName name of the database.
+   * @return names of the collections kept from a previous run.
+   */
+  public List<String> collectionNames(String dbName) {
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return true if the stored documents can be shared by two collections : nothing writes them once stored, not even
+   * the queries (a $near keeps its distances aside), and their store keeps nothing about them.
+   */
+  boolean canFork() {
+    return false;
+  }
+
+  /**
+   * Write on disk what must be, and release the resources of the engine.
+   */
+  public void close() {
+  }
+
+  /**
+   * @param collection the collection owning the store.
+   * @return a new store for the collection.
+   */
+  public abstract DocumentStore createStore(DBCollection collection);
+
+  @Override
+  public String toString() {
+    return "StorageEngine(" + name + ")";
+  }
+}
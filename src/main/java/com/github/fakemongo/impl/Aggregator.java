@@ -1,20 +1,27 @@
 package com.github.fakemongo.impl;
 
+import com.github.fakemongo.AggregationCache;
+import com.github.fakemongo.impl.aggregation.AggregationCursor;
+import com.github.fakemongo.impl.aggregation.Facet;
 import com.github.fakemongo.impl.aggregation.Group;
 import com.github.fakemongo.impl.aggregation.Limit;
+import com.github.fakemongo.impl.aggregation.Lookup;
 import com.github.fakemongo.impl.aggregation.Match;
+import com.github.fakemongo.impl.aggregation.Out;
 import com.github.fakemongo.impl.aggregation.PipelineKeyword;
 import com.github.fakemongo.impl.aggregation.Project;
 import com.github.fakemongo.impl.aggregation.Skip;
 import com.github.fakemongo.impl.aggregation.Sort;
 import com.github.fakemongo.impl.aggregation.Unwind;
-import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,42 +34,276 @@ public class Aggregator {
   private final FongoDB fongoDB;
   private final FongoDBCollection fongoDBCollection;
   private final List<DBObject> pipeline;
-  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE);
+  private final long maxTimeMS;
+  private final boolean allowDiskUse;
+  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE, Lookup.INSTANCE, Facet.INSTANCE, Out.INSTANCE);
 
   public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline) {
+    this(fongoDB, coll, pipeline, 0L, false);
+  }
+
+  /**
+   * @param maxTimeMS    the time limit of the aggregation in milliseconds, 0 for none.
+   * @param allowDiskUse true if the $sort and the $group can write their documents in temporary files past 100MB.
+   */
+  public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline, long maxTimeMS, boolean allowDiskUse) {
     this.fongoDB = fongoDB;
     this.fongoDBCollection = coll;
     this.pipeline = pipeline;
+    this.maxTimeMS = maxTimeMS;
+    this.allowDiskUse = allowDiskUse;
   }
 
   /**
    * @return null if error.
    */
   public List<DBObject> computeResult() {
-    DBCollection coll = fongoDB.createCollection(UUID.randomUUID().toString(), null);
+    AggregationCursor cursor = cursor(0);
     try {
-      coll.insert(this.fongoDBCollection.find().toArray());
-
-      for (DBObject object : pipeline) {
-        boolean found = false;
-        for (PipelineKeyword keyword : keywords) {
-          if (keyword.canApply(object)) {
-            coll = keyword.apply(coll, object);
-            found = true;
-            break;
-          }
-        }
-        if (!found) {
-          fongoDB.notOkErrorResult(16436, "exception: Unrecognized pipeline stage name: '" + object.keySet() + "'").throwOnError();
-        }
-        // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
+      List<DBObject> result = new ArrayList<DBObject>();
+      while (cursor.hasNext()) {
+        result.add(cursor.next());
       }
-
-      List<DBObject> result = coll.find().toArray();
       LOG.debug("computeResult() : {}", result);
       return result;
     } finally {
-      coll.drop();
+      cursor.close();
+    }
+  }
+
+  /**
+   * The documents go through the stages one by one : each stage pulls the documents of the previous one when needed.
+   * The leading $match, $sort and $limit are run as a query of the collection, using its indexes : only the documents
+   * found go through the next stages.
+   * <p/>
+   * Past the time limit, the next document read by a stage fails the aggregation, in the sub-pipelines of a $facet too.
+   * A sort done in memory, by the query or by $sort, is not interrupted : the limit is checked once it is done. A
+   * pipeline ending with $out is run at once. With the {@link AggregationCache} of the Fongo, the results are given back while the collection is
+   * not written.
+   *
+   * @param batchSize the documents computed at once, 0 for the default.
+   * @return the documents of the last stage, computed when pulled.
+   */
+  public AggregationCursor cursor(int batchSize) {
+    AggregationCache cache = fongoDB.getAggregationCache();
+    boolean cached = cache.canCache(this.pipeline);
+    long version = fongoDBCollection.getVersion();
+    if (cached) {
+      List<DBObject> results = cache.get(fongoDBCollection, version, this.pipeline);
+      if (results != null) {
+        return new AggregationCursor(results.iterator(), null, batchSize, fongoDB.getServerAddress());
+      }
+    }
+
+    List<DBObject> pipeline = optimize(this.pipeline);
+    int first = 0;
+    DBObject query = (DBObject) stageParameter(pipeline, first, Match.INSTANCE);
+    if (query != null) {
+      first++;
+    }
+    DBObject orderBy = (DBObject) stageParameter(pipeline, first, Sort.INSTANCE);
+    if (orderBy != null) {
+      first++;
+    }
+    Number limit = (Number) stageParameter(pipeline, first, Limit.INSTANCE);
+    // A bad limit is left to the stage.
+    if (limit != null && limit.intValue() > 0) {
+      first++;
+    }
+
+    DBCursor cursor = fongoDBCollection.find(query);
+    if (orderBy != null) {
+      cursor.sort(orderBy);
+    }
+    if (limit != null && limit.intValue() > 0) {
+      cursor.limit(limit.intValue());
+    }
+    boolean done = false;
+    try {
+      long deadline = maxTimeMS > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxTimeMS) : 0L;
+      Iterator<DBObject> documents = apply(cursor, pipeline, first, deadline);
+      if (cached) {
+        documents = new Recording(documents, cache, version);
+      }
+      if (!pipeline.isEmpty() && Out.INSTANCE.canApply(pipeline.get(pipeline.size() - 1))) {
+        // Like MongoDB, the documents are written before the cursor is returned.
+        documents.hasNext();
+      }
+      done = true;
+      return new AggregationCursor(documents, cursor, batchSize, fongoDB.getServerAddress());
+    } finally {
+      if (!done) {
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Apply the pipeline on other documents than the ones of the collection : the input of a sub-pipeline of $facet.
+   *
+   * @param deadline the {@link System#nanoTime()} past which the aggregation fails, 0 for none.
+   * @return the documents of the last stage, computed when pulled.
+   */
+  public Iterator<DBObject> apply(Iterator<DBObject> documents, long deadline) {
+    return apply(documents, optimize(this.pipeline), 0, deadline);
+  }
+
+  /**
+   * Each stage checks the deadline before reading a document of the previous one.
+   */
+  private Iterator<DBObject> apply(Iterator<DBObject> documents, List<DBObject> pipeline, int first, long deadline) {
+    for (int i = first; i < pipeline.size(); i++) {
+      DBObject object = pipeline.get(i);
+      PipelineKeyword keyword = keyword(object);
+      if (keyword == Out.INSTANCE && i != pipeline.size() - 1) {
+        fongoDB.notOkErrorResult(16991, "exception: $out can only be the final stage in the pipeline").throwOnError();
+      }
+      if (deadline != 0L) {
+        documents = new TimeLimit(documents, deadline);
+      }
+      int topK = keyword == Sort.INSTANCE ? topK(pipeline, i + 1) : 0;
+      if (topK > 0) {
+        // The $skip and $limit stages still apply after, the documents kept always fit in memory.
+        documents = Sort.INSTANCE.apply(fongoDBCollection, documents, object, topK);
+      } else {
+        documents = keyword.apply(fongoDBCollection, documents, object, allowDiskUse, deadline);
+      }
+    }
+    return deadline != 0L ? new TimeLimit(documents, deadline) : documents;
+  }
+
+  /**
+   * Move the $skip and $limit before the $project : fewer documents are projected, and a $sort followed by a $project
+   * then a $limit can keep only the first documents.
+   */
+  private static List<DBObject> optimize(List<DBObject> pipeline) {
+    List<DBObject> optimized = new ArrayList<DBObject>(pipeline);
+    for (int i = 1; i < optimized.size(); i++) {
+      DBObject object = optimized.get(i);
+      if (Project.INSTANCE.canApply(optimized.get(i - 1)) && (Skip.INSTANCE.canApply(object) || Limit.INSTANCE.canApply(object))) {
+        optimized.set(i, optimized.get(i - 1));
+        optimized.set(i - 1, object);
+        i = Math.max(0, i - 2);
+      }
+    }
+    return optimized;
+  }
+
+  /**
+   * @return the number of documents to keep of a $sort followed by $skip then a $limit from this index, 0 if there's
+   * no limit.
+   */
+  private static int topK(List<DBObject> pipeline, int index) {
+    long skipped = 0;
+    for (int i = index; i < pipeline.size(); i++) {
+      DBObject object = pipeline.get(i);
+      if (Skip.INSTANCE.canApply(object)) {
+        skipped += ((Number) object.get(Skip.INSTANCE.getKeyword())).intValue();
+      } else if (Limit.INSTANCE.canApply(object)) {
+        int limit = ((Number) object.get(Limit.INSTANCE.getKeyword())).intValue();
+        return limit > 0 && skipped + limit <= Integer.MAX_VALUE ? (int) (skipped + limit) : 0;
+      } else {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the parameter of the stage at this index if it's a stage of the keyword, else null.
+   */
+  private static Object stageParameter(List<DBObject> pipeline, int index, PipelineKeyword keyword) {
+    if (index < pipeline.size() && keyword.canApply(pipeline.get(index))) {
+      return pipeline.get(index).get(keyword.getKeyword());
+    }
+    return null;
+  }
+
+  private PipelineKeyword keyword(DBObject object) {
+    for (PipelineKeyword keyword : keywords) {
+      if (keyword.canApply(object)) {
+        return keyword;
+      }
+    }
+    // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
+    fongoDB.notOkErrorResult(16436, "exception: Unrecognized pipeline stage name: '" + object.keySet() + "'").throwOnError();
+    return null;
+  }
+
+  /**
+   * Keep a copy of the documents read, put in the cache when they are all read if the collection wasn't written since.
+   */
+  private final class Recording implements Iterator<DBObject> {
+    private final Iterator<DBObject> documents;
+    private final AggregationCache cache;
+    private final long version;
+    private List<DBObject> results = new ArrayList<DBObject>();
+
+    Recording(Iterator<DBObject> documents, AggregationCache cache, long version) {
+      this.documents = documents;
+      this.cache = cache;
+      this.version = version;
+    }
+
+    @Override
+    public boolean hasNext() {
+      boolean hasNext = documents.hasNext();
+      if (!hasNext && results != null) {
+        if (fongoDBCollection.getVersion() == version) {
+          cache.put(fongoDBCollection, version, pipeline, results);
+        }
+        results = null;
+      }
+      return hasNext;
+    }
+
+    @Override
+    public DBObject next() {
+      DBObject document = documents.next();
+      if (results != null) {
+        results.add(Util.clone(document));
+        if (results.size() > AggregationCache.MAX_DOCUMENTS) {
+          // Too big to be kept.
+          results = null;
+        }
+      }
+      return document;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Fail the aggregation when a document is read past the deadline, like MongoDB with maxTimeMS.
+   */
+  private final class TimeLimit implements Iterator<DBObject> {
+    private final Iterator<DBObject> documents;
+    private final long deadline;
+
+    TimeLimit(Iterator<DBObject> documents, long deadline) {
+      this.documents = documents;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (System.nanoTime() - deadline > 0) {
+        fongoDB.notOkErrorResult(50, null, "operation exceeded time limit").throwOnError();
+      }
+      return documents.hasNext();
+    }
+
+    @Override
+    public DBObject next() {
+      return documents.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
     }
   }
 }
@@ -7,7 +7,6 @@ import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.DBRefBase;
-import com.mongodb.FongoDBCollection;
 import com.mongodb.LazyDBObject;
 import com.mongodb.QueryOperators;
 import com.mongodb.util.JSON;
@@ -21,6 +20,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -1020,29 +1020,65 @@ public class ExpressionParser {
 
   // Take care of : https://groups.google.com/forum/?fromgroups=#!topic/mongomapper/MfRDh2vtCFg
   public Filter createNearFilter(final List<String> path, final List<LatLong> coordinates, final Number maxDistance, final boolean sphere) {
-    return new Filter() {
-      final LatLong coordinate = coordinates.get(0); // TODO(twillouer) try to get all coordinates.
+    return new NearFilter(path, coordinates.get(0), maxDistance, sphere); // TODO(twillouer) try to get all coordinates.
+  }
 
-      @Override
-      public boolean apply(DBObject o) {
-        boolean result = false;
+  /**
+   * @param filter a filter built by this parser.
+   * @return the distances computed by the $near of the filter, by identity of the objects it was applied to. Null if
+   * the filter has no $near.
+   */
+  public static Map<DBObject, Double> nearDistances(Filter filter) {
+    if (filter instanceof NearFilter) {
+      return ((NearFilter) filter).distances;
+    }
+    if (filter instanceof AndFilter) {
+      for (Filter f : ((AndFilter) filter).filters) {
+        Map<DBObject, Double> distances = nearDistances(f);
+        if (distances != null) {
+          return distances;
+        }
+      }
+    }
+    return null;
+  }
 
-        List<LatLong> storedOption = GeoUtil.latLon(path, o);
-        if (!storedOption.isEmpty()) {
-          for (LatLong point : storedOption) {
+  /**
+   * The distances are kept by the filter : the tested objects are the stored ones, they are never written.
+   */
+  static class NearFilter implements Filter {
+    private final List<String> path;
+    private final LatLong coordinate;
+    private final Number maxDistance;
+    private final boolean sphere;
+    final Map<DBObject, Double> distances = new IdentityHashMap<DBObject, Double>();
+
+    NearFilter(List<String> path, LatLong coordinate, Number maxDistance, boolean sphere) {
+      this.path = path;
+      this.coordinate = coordinate;
+      this.maxDistance = maxDistance;
+      this.sphere = sphere;
+    }
 
-            double distance = GeoUtil.distanceInRadians(point, coordinate, sphere);
-            LOG.debug("distance : {}", distance);
-            result = maxDistance == null || distance < maxDistance.doubleValue();
-            o.put(FongoDBCollection.FONGO_SPECIAL_ORDER_BY, distance);
-            if (result) {
-              break;
-            }
+    @Override
+    public boolean apply(DBObject o) {
+      boolean result = false;
+
+      List<LatLong> storedOption = GeoUtil.latLon(path, o);
+      if (!storedOption.isEmpty()) {
+        for (LatLong point : storedOption) {
+
+          double distance = GeoUtil.distanceInRadians(point, coordinate, sphere);
+          LOG.debug("distance : {}", distance);
+          result = maxDistance == null || distance < maxDistance.doubleValue();
+          distances.put(o, distance);
+          if (result) {
+            break;
           }
         }
-        return result;
       }
-    };
+      return result;
+    }
   }
 
   private Filter createGeowithinFilter(final List<String> path, final Geometry geometry) {
@@ -0,0 +1,373 @@
+package com.github.fakemongo.impl;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSONCallback;
+import com.mongodb.util.JSONParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read the JSON documents of a stream (like <code>mongoexport</code> writes them : one by line, or in an array) without
+ * reading the whole text first : each document is parsed when asked for. The extended JSON ($oid, $date...) is read
+ * like {@link com.mongodb.util.JSON#parse(String)} does.
+ * <p/>
+ * The field names are shared between the documents.
+ */
+public class JsonStream implements Iterator<DBObject> {
+
+  private static final String[] INDEXES = new String[64];
+
+  static {
+    for (int i = 0; i < INDEXES.length; i++) {
+      INDEXES[i] = String.valueOf(i);
+    }
+  }
+
+  private final Reader reader;
+  private final char[] buffer = new char[64 * 1024];
+  private int position;
+  private int limit;
+  private final StringBuilder chars = new StringBuilder();
+  private final String[] names = new String[1024];
+  private final JSONCallback callback = new JSONCallback();
+  // Documents in an array, instead of one after the other.
+  private boolean array;
+  private boolean started;
+  private boolean ended;
+  private DBObject next;
+
+  public JsonStream(Reader reader) {
+    this.reader = reader;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !ended) {
+      try {
+        next = readDocument();
+      } catch (IOException e) {
+        throw new FongoException("can't read JSON", e);
+      }
+      ended = next == null;
+    }
+    return next != null;
+  }
+
+  @Override
+  public DBObject next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    DBObject document = next;
+    next = null;
+    return document;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private DBObject readDocument() throws IOException {
+    int c = skipWhitespace();
+    if (!started) {
+      started = true;
+      if (c == '[') {
+        array = true;
+        position++;
+        if (skipWhitespace() == ']') {
+          position++;
+          return null;
+        }
+        return parseDocument();
+      }
+    } else if (array) {
+      if (c == ']') {
+        position++;
+        return null;
+      }
+      expect(',');
+    }
+    if (c == -1) {
+      return null;
+    }
+    return parseDocument();
+  }
+
+  private DBObject parseDocument() throws IOException {
+    if (skipWhitespace() != '{') {
+      throw error("document expected");
+    }
+    callback.reset();
+    parseValue(null);
+    return (DBObject) callback.get();
+  }
+
+  private void parseValue(String name) throws IOException {
+    int c = skipWhitespace();
+    switch (c) {
+      case '{':
+        position++;
+        if (name == null) {
+          callback.objectStart();
+        } else {
+          callback.objectStart(name);
+        }
+        if (!accept('}')) {
+          do {
+            String key = parseName();
+            expect(':');
+            parseValue(key);
+          } while (accept(','));
+          expect('}');
+        }
+        callback.objectDone();
+        break;
+      case '[':
+        position++;
+        callback.arrayStart(name);
+        if (!accept(']')) {
+          int index = 0;
+          do {
+            parseValue(index < INDEXES.length ? INDEXES[index] : String.valueOf(index));
+            index++;
+          } while (accept(','));
+          expect(']');
+        }
+        callback.arrayDone();
+        break;
+      case '"':
+      case '\'':
+        callback.gotString(name, parseString());
+        break;
+      case 'n':
+        literal("null");
+        callback.gotNull(name);
+        break;
+      case 't':
+        literal("true");
+        callback.gotBoolean(name, true);
+        break;
+      case 'f':
+        literal("false");
+        callback.gotBoolean(name, false);
+        break;
+      case 'N':
+        literal("NaN");
+        callback.gotDouble(name, Double.NaN);
+        break;
+      default:
+        if (c == '-' || c == '+' || (c >= '0' && c <= '9')) {
+          parseNumber(name);
+        } else {
+          throw error(c == -1 ? "unexpected end" : "unexpected character");
+        }
+    }
+  }
+
+  /**
+   * @return the field name, quoted or not : the same instance for the same name.
+   */
+  private String parseName() throws IOException {
+    int c = skipWhitespace();
+    if (c == '"' || c == '\'') {
+      position++;
+      int start = position;
+      while (position < limit && buffer[position] != c && buffer[position] != '\\') {
+        position++;
+      }
+      if (position < limit && buffer[position] == c) {
+        position++;
+        return name(buffer, start, position - 1 - start);
+      }
+      // Escaped, or on two buffers.
+      position = start - 1;
+      String string = parseString();
+      return name(string.toCharArray(), 0, string.length());
+    }
+    chars.setLength(0);
+    for (c = peek(); c != -1 && c != ':' && !Character.isWhitespace(c); c = peek()) {
+      chars.append((char) c);
+      position++;
+    }
+    if (chars.length() == 0) {
+      throw error("field name expected");
+    }
+    return chars.toString();
+  }
+
+  private String name(char[] source, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + source[i];
+    }
+    int slot = hash & (names.length - 1);
+    String name = names[slot];
+    if (name == null || !matches(name, source, offset, length)) {
+      name = new String(source, offset, length);
+      names[slot] = name;
+    }
+    return name;
+  }
+
+  private static boolean matches(String name, char[] source, int offset, int length) {
+    if (name.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != source[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String parseString() throws IOException {
+    char quote = buffer[position++];
+    int start = position;
+    while (position < limit && buffer[position] != quote && buffer[position] != '\\') {
+      position++;
+    }
+    if (position < limit && buffer[position] == quote) {
+      position++;
+      return new String(buffer, start, position - 1 - start);
+    }
+    chars.setLength(0);
+    chars.append(buffer, start, position - start);
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw error("unterminated string");
+      } else if (c == quote) {
+        return chars.toString();
+      } else if (c == '\\') {
+        chars.append(escaped());
+      } else {
+        chars.append((char) c);
+      }
+    }
+  }
+
+  private char escaped() throws IOException {
+    int c = read();
+    switch (c) {
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'u':
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw error("bad unicode escape");
+          }
+          code = code * 16 + digit;
+        }
+        return (char) code;
+      case -1:
+        throw error("unterminated string");
+      default:
+        return (char) c;
+    }
+  }
+
+  private void parseNumber(String name) throws IOException {
+    chars.setLength(0);
+    boolean decimal = false;
+    for (int c = peek(); c != -1; c = peek()) {
+      if (c == '.' || c == 'e' || c == 'E') {
+        decimal = true;
+      } else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+        break;
+      }
+      if (c != '+' || chars.length() > 0) {
+        chars.append((char) c);
+      }
+      position++;
+    }
+    try {
+      if (decimal) {
+        callback.gotDouble(name, Double.parseDouble(chars.toString()));
+      } else {
+        long value = Long.parseLong(chars.toString());
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+          callback.gotInt(name, (int) value);
+        } else {
+          callback.gotLong(name, value);
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw error("bad number " + chars);
+    }
+  }
+
+  private void literal(String expected) throws IOException {
+    for (int i = 0; i < expected.length(); i++) {
+      if (peek() != expected.charAt(i)) {
+        throw error(expected + " expected");
+      }
+      position++;
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    if (skipWhitespace() != expected) {
+      throw error("'" + expected + "' expected");
+    }
+    position++;
+  }
+
+  private boolean accept(char expected) throws IOException {
+    if (skipWhitespace() == expected) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private int skipWhitespace() throws IOException {
+    int c = peek();
+    while (c != -1 && Character.isWhitespace(c)) {
+      position++;
+      c = peek();
+    }
+    return c;
+  }
+
+  private int peek() throws IOException {
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    return buffer[position];
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    if (c != -1) {
+      position++;
+    }
+    return c;
+  }
+
+  private boolean fill() throws IOException {
+    int read = reader.read(buffer, 0, buffer.length);
+    position = 0;
+    limit = Math.max(read, 0);
+    return read > 0;
+  }
+
+  private JSONParseException error(String message) {
+    int from = Math.max(0, position - 40);
+    return new JSONParseException(message + " in : " + new String(buffer, from, Math.min(limit, position + 40) - from), position - from);
+  }
+}
@@ -0,0 +1,341 @@
+package com.github.fakemongo.impl;
+
+import com.github.fakemongo.Fongo;
+import com.github.fakemongo.FongoException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.util.JSON;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.bson.io.BasicOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read and write the directories of <code>mongodump</code> : a directory by database, with for each collection its
+ * documents in <code>collection.bson</code> and its indexes in <code>collection.metadata.json</code>.
+ * <p/>
+ * The documents read are not decoded by the stores keeping BSON. The indexes are declared before reading the
+ * documents, then filled once at the end.
+ */
+public final class MongoDump {
+  private static final Logger LOG = LoggerFactory.getLogger(MongoDump.class);
+
+  private static final String BSON = ".bson";
+  private static final String METADATA = ".metadata.json";
+  // Indexes of the dumps of MongoDB 2.0 and before.
+  private static final String SYSTEM_INDEXES = "system.indexes";
+
+  // Like MongoDB : 16MB, and some room for the commands.
+  private static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024 + 16 * 1024;
+
+  private MongoDump() {
+  }
+
+  /**
+   * @param fongo     the fongo to dump.
+   * @param directory the dump directory, with a directory by database.
+   */
+  public static void write(Fongo fongo, File directory) {
+    DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+    int documents = 0;
+    try {
+      for (DB db : fongo.getUsedDatabases()) {
+        File dbDirectory = new File(directory, db.getName());
+        if (!dbDirectory.isDirectory() && !dbDirectory.mkdirs()) {
+          throw new FongoException("can't create directory " + dbDirectory);
+        }
+        Map<String, List<DBObject>> indexes = indexes(db);
+        for (String collectionName : db.getCollectionNames()) {
+          if (collectionName.equals(SYSTEM_INDEXES)) {
+            continue;
+          }
+          OutputStream output = new BufferedOutputStream(new FileOutputStream(new File(dbDirectory, collectionName + BSON)), 64 * 1024);
+          try {
+            DBCursor cursor = db.getCollection(collectionName).find();
+            try {
+              while (cursor.hasNext()) {
+                BasicOutputBuffer buffer = new BasicOutputBuffer();
+                encoder.writeObject(buffer, cursor.next());
+                buffer.pipe(output);
+                documents++;
+              }
+            } finally {
+              cursor.close();
+            }
+          } finally {
+            output.close();
+          }
+          List<DBObject> collectionIndexes = indexes.get(collectionName);
+          DBObject metadata = new BasicDBObject("options", new BasicDBObject())
+              .append("indexes", collectionIndexes == null ? new ArrayList<DBObject>() : collectionIndexes);
+          Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dbDirectory, collectionName + METADATA)), "UTF-8");
+          try {
+            writer.write(JSON.serialize(metadata));
+          } finally {
+            writer.close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't write dump in " + directory, e);
+    }
+    LOG.debug("{} documents dumped in {}", documents, directory);
+  }
+
+  /**
+   * The collections of the dump are dropped before being read, like with <code>mongorestore --drop</code>.
+   *
+   * @param fongo     the fongo to fill.
+   * @param directory the dump directory, with a directory by database, or the directory of one database.
+   */
+  public static void read(Fongo fongo, File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new FongoException("not a directory : " + directory);
+    }
+    int documents = 0;
+    if (hasBson(files)) {
+      documents += readDatabase(fongo.getDB(directory.getName()), files);
+    } else {
+      for (File file : files) {
+        File[] dbFiles = file.listFiles();
+        if (dbFiles != null && hasBson(dbFiles)) {
+          documents += readDatabase(fongo.getDB(file.getName()), dbFiles);
+        }
+      }
+    }
+    LOG.debug("{} documents read from {}", documents, directory);
+  }
+
+  private static boolean hasBson(File[] files) {
+    for (File file : files) {
+      if (file.getName().endsWith(BSON)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int readDatabase(DB db, File[] files) {
+    Arrays.sort(files);
+    Map<String, List<DBObject>> oldIndexes = new HashMap<String, List<DBObject>>();
+    for (File file : files) {
+      if (file.getName().equals(SYSTEM_INDEXES + BSON)) {
+        BsonIterator iterator = new BsonIterator(file);
+        DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+        try {
+          while (iterator.hasNext()) {
+            ByteBuffer bson = iterator.next();
+            DBObject index = decoder.decode(Arrays.copyOfRange(bson.array(), bson.position(), bson.limit()), (DBCollection) null);
+            String ns = (String) index.get("ns");
+            String collectionName = ns.substring(ns.indexOf('.') + 1);
+            if (!oldIndexes.containsKey(collectionName)) {
+              oldIndexes.put(collectionName, new ArrayList<DBObject>());
+            }
+            oldIndexes.get(collectionName).add(index);
+          }
+        } finally {
+          iterator.close();
+        }
+      }
+    }
+    int documents = 0;
+    for (File file : files) {
+      String fileName = file.getName();
+      if (!fileName.endsWith(BSON) || fileName.equals(SYSTEM_INDEXES + BSON)) {
+        continue;
+      }
+      String collectionName = fileName.substring(0, fileName.length() - BSON.length());
+      FongoDBCollection collection = (FongoDBCollection) db.getCollection(collectionName);
+      collection.drop();
+      List<DBObject> indexes = oldIndexes.get(collectionName);
+      File metadata = new File(file.getParentFile(), collectionName + METADATA);
+      if (metadata.exists()) {
+        indexes = readIndexes(metadata);
+      }
+      if (indexes != null) {
+        createIndexes(collection, indexes);
+      }
+      BsonIterator iterator = new BsonIterator(file);
+      try {
+        documents += collection.bulkInsertBson(iterator);
+      } finally {
+        iterator.close();
+      }
+    }
+    return documents;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<DBObject> readIndexes(File metadata) {
+    try {
+      byte[] data = new byte[(int) metadata.length()];
+      FileInputStream input = new FileInputStream(metadata);
+      try {
+        int read = 0;
+        while (read < data.length) {
+          int count = input.read(data, read, data.length - read);
+          if (count < 0) {
+            break;
+          }
+          read += count;
+        }
+      } finally {
+        input.close();
+      }
+      DBObject parsed = (DBObject) JSON.parse(new String(data, "UTF-8"));
+      List<DBObject> indexes = (List<DBObject>) parsed.get("indexes");
+      return indexes == null ? new ArrayList<DBObject>() : indexes;
+    } catch (IOException e) {
+      throw new FongoException("can't read " + metadata, e);
+    }
+  }
+
+  private static void createIndexes(FongoDBCollection collection, List<DBObject> indexes) {
+    for (DBObject index : indexes) {
+      if ("_id_".equals(index.get("name"))) {
+        continue;
+      }
+      DBObject options = new BasicDBObject();
+      for (String key : index.keySet()) {
+        if (!key.equals("key") && !key.equals("ns") && !key.equals("v")) {
+          options.put(key, index.get(key));
+        }
+      }
+      collection.createIndex((DBObject) index.get("key"), options);
+    }
+  }
+
+  /**
+   * Index definitions of system.indexes, by collection.
+   */
+  private static Map<String, List<DBObject>> indexes(DB db) {
+    Map<String, List<DBObject>> indexes = new HashMap<String, List<DBObject>>();
+    String prefix = db.getName() + ".";
+    for (DBObject index : db.getCollection(SYSTEM_INDEXES).find()) {
+      String ns = (String) index.get("ns");
+      if (ns != null && ns.startsWith(prefix)) {
+        String collectionName = ns.substring(prefix.length());
+        if (!indexes.containsKey(collectionName)) {
+          indexes.put(collectionName, new ArrayList<DBObject>());
+        }
+        indexes.get(collectionName).add(index);
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Read the documents of a .bson file through one buffer : each document is only valid until the next one.
+   */
+  private static class BsonIterator implements Iterator<ByteBuffer> {
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int length = -1;
+
+    BsonIterator(File file) {
+      this.file = file;
+      try {
+        this.channel = new FileInputStream(file).getChannel();
+      } catch (IOException e) {
+        throw new FongoException("can't read " + file, e);
+      }
+      buffer.flip();
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (length < 0) {
+        try {
+          if (!fill(4)) {
+            if (buffer.hasRemaining()) {
+              throw new FongoException("truncated document at the end of " + file);
+            }
+            return false;
+          }
+          length = buffer.getInt(buffer.position());
+          if (length < 5 || length > MAX_DOCUMENT_SIZE) {
+            throw new FongoException("bad document size " + length + " in " + file);
+          }
+          if (length > buffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            bigger.put(buffer).flip();
+            buffer = bigger;
+          }
+          if (!fill(length)) {
+            throw new FongoException("truncated document at the end of " + file);
+          }
+        } catch (IOException e) {
+          throw new FongoException("can't read " + file, e);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ByteBuffer document = buffer.duplicate();
+      document.limit(buffer.position() + length);
+      buffer.position(buffer.position() + length);
+      length = -1;
+      return document;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return true if at least count bytes are in the buffer.
+     */
+    private boolean fill(int count) throws IOException {
+      while (buffer.remaining() < count) {
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("can't close " + file, e);
+      }
+    }
+  }
+}
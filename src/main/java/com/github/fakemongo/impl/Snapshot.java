@@ -0,0 +1,216 @@
+package com.github.fakemongo.impl;
+
+import com.github.fakemongo.Fongo;
+import com.github.fakemongo.FongoException;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.FongoDBCollection;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.bson.io.BasicOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write all the databases of a {@link Fongo} in a file, and read them back.
+ * <p/>
+ * The file is a stream of : a database (its name), a collection (its name) then its documents in BSON, each one
+ * preceded by its length, until a 0 length. The collection <code>system.indexes</code> comes first in each database :
+ * the indexes are declared before the documents are read, then filled while reading them.
+ */
+public final class Snapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(Snapshot.class);
+
+  private static final int MAGIC = 0x464f4e47;
+  private static final int VERSION = 1;
+
+  private static final byte END = 0;
+  private static final byte DATABASE = 1;
+  private static final byte COLLECTION = 2;
+
+  private static final String SYSTEM_INDEXES = "system.indexes";
+
+  private Snapshot() {
+  }
+
+  /**
+   * The collections existing when it starts are written at one point in time : the snapshot holds their locks, the
+   * writes wait for it.
+   *
+   * @param fongo the fongo to save.
+   * @param file  the file to write.
+   */
+  public static void write(Fongo fongo, File file) {
+    Map<String, List<FongoDBCollection>> databases = new LinkedHashMap<String, List<FongoDBCollection>>();
+    List<FongoDBCollection> locks = new ArrayList<FongoDBCollection>();
+    List<FongoDBCollection> systemLocks = new ArrayList<FongoDBCollection>();
+    for (DB db : fongo.getUsedDatabases()) {
+      List<FongoDBCollection> collections = new ArrayList<FongoDBCollection>();
+      for (String collectionName : collectionNames(db)) {
+        FongoDBCollection collection = (FongoDBCollection) db.getCollection(collectionName);
+        collections.add(collection);
+        (collectionName.startsWith("system.") ? systemLocks : locks).add(collection);
+      }
+      databases.put(db.getName(), collections);
+    }
+    // System collections last : the writes in the other ones write in them.
+    locks.addAll(systemLocks);
+    try {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        write(databases, locks, 0, output);
+        output.writeByte(END);
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't write snapshot " + file, e);
+    }
+  }
+
+  /**
+   * Take the locks from the index, then write the databases.
+   */
+  private static void write(Map<String, List<FongoDBCollection>> databases, List<FongoDBCollection> locks, int index, DataOutputStream output) throws IOException {
+    if (index < locks.size()) {
+      synchronized (locks.get(index)) {
+        write(databases, locks, index + 1, output);
+      }
+      return;
+    }
+    DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+    for (Map.Entry<String, List<FongoDBCollection>> db : databases.entrySet()) {
+      output.writeByte(DATABASE);
+      output.writeUTF(db.getKey());
+      for (FongoDBCollection collection : db.getValue()) {
+        output.writeByte(COLLECTION);
+        output.writeUTF(collection.getName());
+        DBCursor cursor = collection.find();
+        try {
+          while (cursor.hasNext()) {
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            encoder.writeObject(buffer, cursor.next());
+            output.writeInt(buffer.size());
+            buffer.pipe((OutputStream) output);
+          }
+        } finally {
+          cursor.close();
+        }
+        output.writeInt(0);
+      }
+    }
+  }
+
+  /**
+   * @param fongo the fongo to restore : its databases are dropped first.
+   * @param file  a file written by {@link #write(Fongo, File)}.
+   */
+  public static void read(Fongo fongo, File file) {
+    for (String dbName : fongo.getDatabaseNames()) {
+      fongo.dropDatabase(dbName);
+    }
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+      try {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+          throw new FongoException("not a fongo snapshot : " + file);
+        }
+        DB db = null;
+        int documents = 0;
+        for (byte type = input.readByte(); type != END; type = input.readByte()) {
+          if (type == DATABASE) {
+            db = fongo.getDB(input.readUTF());
+          } else if (type == COLLECTION && db != null) {
+            FongoDBCollection collection = (FongoDBCollection) db.getCollection(input.readUTF());
+            documents += collection.bulkInsert(new DocumentIterator(input, collection));
+          } else {
+            throw new FongoException("corrupted snapshot : " + file);
+          }
+        }
+        LOG.debug("{} documents restored from {}", documents, file);
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't read snapshot " + file, e);
+    }
+  }
+
+  private static List<String> collectionNames(DB db) {
+    List<String> names = new ArrayList<String>(db.getCollectionNames());
+    Collections.sort(names);
+    if (names.remove(SYSTEM_INDEXES)) {
+      names.add(0, SYSTEM_INDEXES);
+    }
+    return names;
+  }
+
+  /**
+   * Decode the documents of a collection, until the 0 length.
+   */
+  private static class DocumentIterator implements Iterator<DBObject> {
+    private final DataInputStream input;
+    private final DBCollection collection;
+    private final DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+    private int length = -1;
+
+    DocumentIterator(DataInputStream input, DBCollection collection) {
+      this.input = input;
+      this.collection = collection;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (length < 0) {
+        try {
+          length = input.readInt();
+        } catch (IOException e) {
+          throw new FongoException("can't read snapshot", e);
+        }
+      }
+      return length > 0;
+    }
+
+    @Override
+    public DBObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      byte[] data = new byte[length];
+      try {
+        input.readFully(data);
+      } catch (IOException e) {
+        throw new FongoException("can't read snapshot", e);
+      }
+      length = -1;
+      return decoder.decode(data, collection);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
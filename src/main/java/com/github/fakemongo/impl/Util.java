@@ -233,9 +233,37 @@ public final class Util {
 
   @SuppressWarnings("unchecked")
   public static Set<Map.Entry<String, Object>> entrySet(DBObject object) {
+    if (object instanceof LazyBSONObject) {
+      // LazyBSONObject.toMap() is not supported.
+      return ((LazyBSONObject) object).entrySet();
+    }
     return (Set<Map.Entry<String, Object>>) object.toMap().entrySet();
   }
 
+  /**
+   * When inserting, MongoDB set _id in first place.
+   * Unlike {@link #cloneIdFirst(DBObject)}, no copy is done if _id is already in first place, and values are not cloned.
+   * Use it only on an object not shared with the caller.
+   *
+   * @param source object to reorder.
+   * @return source, or a shallow copy of source with _id field in first.
+   */
+  public static DBObject idFirst(DBObject source) {
+    if (source.getClass() != BasicDBObject.class || source.isPartialObject()) {
+      return cloneIdFirst(source);
+    }
+    if (!source.containsField(FongoDBCollection.ID_KEY) || FongoDBCollection.ID_KEY.equals(source.keySet().iterator().next())) {
+      return source;
+    }
+    BasicDBObject newobj = new BasicDBObject(FongoDBCollection.ID_KEY, source.get(FongoDBCollection.ID_KEY));
+    for (String field : source.keySet()) {
+      if (!FongoDBCollection.ID_KEY.equals(field)) {
+        newobj.put(field, source.get(field));
+      }
+    }
+    return newobj;
+  }
+
   /**
    * When inserting, MongoDB set _id in first place.
    *
@@ -0,0 +1,108 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The result of an aggregation, pulled from the last stage of the pipeline by batches : the first documents are given
+ * before the pipeline is done.
+ */
+public final class AggregationCursor implements Cursor {
+
+  // Like MongoDB : the first batch has 101 documents.
+  static final int DEFAULT_BATCH_SIZE = 101;
+
+  private final Iterator<DBObject> documents;
+  private final DBCursor source;
+  private final int batchSize;
+  private final ServerAddress serverAddress;
+  private final List<DBObject> batch = new ArrayList<DBObject>();
+  private int index;
+  private boolean closed;
+
+  /**
+   * @param documents the last stage of the pipeline.
+   * @param source    the query of the collection read by the first stage, closed with this cursor : null if the
+   *                  documents are already computed.
+   * @param batchSize the documents pulled at once, 0 for the default.
+   */
+  public AggregationCursor(Iterator<DBObject> documents, DBCursor source, int batchSize, ServerAddress serverAddress) {
+    this.documents = documents;
+    this.source = source;
+    this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    this.serverAddress = serverAddress;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (index < batch.size()) {
+      return true;
+    }
+    if (closed) {
+      return false;
+    }
+    batch.clear();
+    index = 0;
+    try {
+      while (batch.size() < batchSize && documents.hasNext()) {
+        batch.add(documents.next());
+      }
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+    if (batch.size() < batchSize) {
+      // Exhausted : the documents of the batch can still be read.
+      release();
+    }
+    return !batch.isEmpty();
+  }
+
+  @Override
+  public DBObject next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return batch.get(index++);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return 0 when all the documents are computed, like MongoDB when the cursor is exhausted.
+   */
+  @Override
+  public long getCursorId() {
+    return closed ? 0L : System.identityHashCode(this);
+  }
+
+  @Override
+  public ServerAddress getServerAddress() {
+    return serverAddress;
+  }
+
+  @Override
+  public void close() {
+    release();
+    batch.clear();
+    index = 0;
+  }
+
+  private void release() {
+    if (!closed) {
+      closed = true;
+      if (source != null) {
+        source.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,624 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import org.bson.util.annotations.ThreadSafe;
+
+/**
+ * An aggregation expression, like <code>{ $concat : [ "$item.type", " ", "$item.category" ] }</code>.
+ * <p/>
+ * The expression is compiled once : the field paths are split and the operators resolved. Then it is evaluated for
+ * each document without parsing anything. The same expression can be evaluated by several threads at once.
+ * <p/>
+ * See http://docs.mongodb.org/manual/reference/operator/aggregation/#expression-operators
+ */
+@ThreadSafe
+abstract class Expression {
+
+  /**
+   * The value of a missing field : the field is not written in the result, and is null for the operators.
+   */
+  static final Object MISSING = new Object() {
+    @Override
+    public String toString() {
+      return "MISSING";
+    }
+  };
+
+  /**
+   * @return the value for this document, {@link #MISSING} if it is a missing field.
+   */
+  abstract Object evaluate(DBObject object);
+
+  /**
+   * @return the value for this document, null if it is a missing field.
+   */
+  final Object value(DBObject object) {
+    Object value = evaluate(object);
+    return value == MISSING ? null : value;
+  }
+
+  boolean isConstant() {
+    return false;
+  }
+
+  /**
+   * @param expression a "$field", an operator, an object of expressions or a value.
+   */
+  static Expression compile(DBCollection coll, Object expression) {
+    if (expression instanceof String && ((String) expression).startsWith("$")) {
+      return new FieldPath(((String) expression).substring(1));
+    }
+    if (expression instanceof DBObject && !(expression instanceof List)) {
+      DBObject object = (DBObject) expression;
+      String operator = operator(coll, object);
+      if (operator != null) {
+        return operation(coll, operator, object.get(operator));
+      }
+      ObjectBuilder builder = new ObjectBuilder();
+      for (Map.Entry<String, Object> entry : Util.entrySet(object)) {
+        builder.put(entry.getKey(), compile(coll, entry.getValue()));
+      }
+      return builder.build();
+    }
+    return new Literal(expression);
+  }
+
+  /**
+   * Compile the specification of a $project : the _id is kept unless excluded, the fields with 1 or true are kept,
+   * the others are computed.
+   */
+  static Expression compileProjection(DBCollection coll, DBObject projection) {
+    ProjectionBuilder builder = new ProjectionBuilder();
+    Object id = projection.get(FongoDBCollection.ID_KEY);
+    if (id == null || isInclusion(id)) {
+      builder.put(FongoDBCollection.ID_KEY, null);
+    } else if (!isExclusion(id)) {
+      builder.put(FongoDBCollection.ID_KEY, compile(coll, id));
+    }
+    projection(coll, builder, true, projection);
+    return builder.build();
+  }
+
+  private static void projection(DBCollection coll, ProjectionBuilder builder, boolean top, DBObject projection) {
+    for (Map.Entry<String, Object> entry : Util.entrySet(projection)) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value == null || (top && FongoDBCollection.ID_KEY.equals(key))) {
+        continue;
+      }
+      if (isInclusion(value)) {
+        builder.put(key, null);
+      } else if (isExclusion(value)) {
+        PipelineKeyword.errorResult(coll, 16406, "exception: The top-level _id field is the only field currently supported for exclusion");
+      } else if (value instanceof DBObject && !(value instanceof List) && operator(coll, (DBObject) value) == null) {
+        // { author : { name : "$name", lastname : 1 } }
+        projection(coll, builder.sub(key), false, (DBObject) value);
+      } else {
+        builder.put(key, compile(coll, value));
+      }
+    }
+  }
+
+  private static boolean isInclusion(Object value) {
+    return Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).doubleValue() != 0D);
+  }
+
+  private static boolean isExclusion(Object value) {
+    return Boolean.FALSE.equals(value) || (value instanceof Number && ((Number) value).doubleValue() == 0D);
+  }
+
+  /**
+   * @return the operator of the object, null if it is an object of expressions.
+   */
+  private static String operator(DBCollection coll, DBObject object) {
+    String operator = null;
+    for (String key : object.keySet()) {
+      if (key.startsWith("$")) {
+        operator = key;
+      }
+    }
+    if (operator != null && object.keySet().size() != 1) {
+      PipelineKeyword.errorResult(coll, 15983, "exception: the operator must be the only field in a pipeline object (at '" + operator + "'");
+    }
+    return operator;
+  }
+
+  private static Expression operation(DBCollection coll, String operator, Object parameter) {
+    Expression expression;
+    if ("$concat".equals(operator)) {
+      expression = new Concat(operands(coll, operator, parameter, -1));
+    } else if ("$substr".equals(operator)) {
+      expression = new Substr(operands(coll, operator, parameter, 3));
+    } else if ("$toLower".equals(operator) || "$toUpper".equals(operator)) {
+      expression = new ToCase(operands(coll, operator, parameter, 1)[0], "$toUpper".equals(operator));
+    } else if ("$cmp".equals(operator) || "$strcasecmp".equals(operator)) {
+      expression = new Cmp(operands(coll, operator, parameter, 2), "$strcasecmp".equals(operator));
+    } else if ("$ifNull".equals(operator)) {
+      expression = new IfNull(operands(coll, operator, parameter, 2));
+    } else if ("$divide".equals(operator)) {
+      expression = new Divide(coll, operands(coll, operator, parameter, 2));
+    } else if (DateField.FIELDS.containsKey(operator)) {
+      expression = new DatePart(coll, operator, operands(coll, operator, parameter, 1)[0]);
+    } else {
+      PipelineKeyword.errorResult(coll, 15999, "exception: invalid operator '" + operator + "'");
+      return null;
+    }
+    return expression.fold();
+  }
+
+  /**
+   * @param count the number of operands, -1 for at least one.
+   */
+  private static Expression[] operands(DBCollection coll, String operator, Object parameter, int count) {
+    if (!(parameter instanceof List)) {
+      if (count != 1) {
+        PipelineKeyword.errorResult(coll, 16020, count < 0 ? "the " + operator + " operator requires an array of operands" : "the " + operator + " operator requires an array of " + count + " operands");
+      }
+      return new Expression[]{compile(coll, parameter)};
+    }
+    List<?> list = (List<?>) parameter;
+    if ((count < 0 && list.isEmpty()) || (count >= 0 && list.size() != count)) {
+      PipelineKeyword.errorResult(coll, 16020, count < 0 ? "the " + operator + " operator requires an array of operands" :
+          count == 1 ? "the " + operator + " operator requires 1 operand(s)" : "the " + operator + " operator requires an array of " + count + " operands");
+    }
+    Expression[] operands = new Expression[list.size()];
+    for (int i = 0; i < operands.length; i++) {
+      operands[i] = compile(coll, list.get(i));
+    }
+    return operands;
+  }
+
+  /**
+   * @return a literal if all the operands are literals.
+   */
+  Expression fold() {
+    return this;
+  }
+
+  static boolean allConstant(Expression... expressions) {
+    for (Expression expression : expressions) {
+      if (!expression.isConstant()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static final class Literal extends Expression {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      return value;
+    }
+
+    @Override
+    boolean isConstant() {
+      return true;
+    }
+  }
+
+  /**
+   * A "$field.subfield" : the values of the subfield are gathered from the objects of an array.
+   */
+  static final class FieldPath extends Expression {
+    private final String[] path;
+
+    FieldPath(String field) {
+      this.path = Util.split(field).toArray(new String[0]);
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      return evaluate(object, 0);
+    }
+
+    private Object evaluate(Object value, int index) {
+      for (int i = index; i < path.length; i++) {
+        if (value instanceof List) {
+          BasicDBList values = new BasicDBList();
+          for (Object element : (List<?>) value) {
+            Object subValue = evaluate(element, i);
+            if (subValue != MISSING) {
+              values.add(subValue);
+            }
+          }
+          return values;
+        }
+        if (!(value instanceof DBObject) || !((DBObject) value).containsField(path[i])) {
+          return MISSING;
+        }
+        value = ((DBObject) value).get(path[i]);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * An object of expressions : the missing fields are not written.
+   */
+  static final class ObjectExpression extends Expression {
+    private final String[] names;
+    private final Expression[] values;
+
+    ObjectExpression(String[] names, Expression[] values) {
+      this.names = names;
+      this.values = values;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      DBObject result = new BasicDBObject();
+      for (int i = 0; i < names.length; i++) {
+        Object value = values[i].evaluate(object);
+        if (value != MISSING) {
+          result.put(names[i], value);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Gather the fields of an object : the "a.b" fields go into the subobject "a".
+   */
+  private static final class ObjectBuilder {
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+    void put(String name, Expression expression) {
+      int indexDot = name.indexOf('.');
+      if (indexDot > 0) {
+        String field = name.substring(0, indexDot);
+        Object builder = fields.get(field);
+        if (!(builder instanceof ObjectBuilder)) {
+          builder = new ObjectBuilder();
+          fields.put(field, builder);
+        }
+        ((ObjectBuilder) builder).put(name.substring(indexDot + 1), expression);
+      } else {
+        fields.put(name, expression);
+      }
+    }
+
+    ObjectExpression build() {
+      String[] names = new String[fields.size()];
+      Expression[] values = new Expression[fields.size()];
+      int i = 0;
+      for (Map.Entry<String, Object> entry : fields.entrySet()) {
+        names[i] = entry.getKey();
+        values[i++] = entry.getValue() instanceof ObjectBuilder ? ((ObjectBuilder) entry.getValue()).build() : (Expression) entry.getValue();
+      }
+      return new ObjectExpression(names, values);
+    }
+  }
+
+  /**
+   * The fields of a $project : the included fields are copied from the current subdocument, the computed ones are
+   * evaluated on the whole document. A subprojection applies to each element of an array, and the field is left out
+   * when it has nothing to include.
+   */
+  static final class Projection extends Expression {
+    private final String[] names;
+    // null for an included field.
+    private final Expression[] values;
+    private final Projection[] subs;
+    private final boolean computed;
+
+    Projection(String[] names, Expression[] values, Projection[] subs) {
+      this.names = names;
+      this.values = values;
+      this.subs = subs;
+      boolean computed = false;
+      for (int i = 0; i < names.length; i++) {
+        computed |= subs[i] != null ? subs[i].computed : values[i] != null;
+      }
+      this.computed = computed;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      return project(object, object);
+    }
+
+    private DBObject project(DBObject current, DBObject root) {
+      DBObject result = new BasicDBObject();
+      for (int i = 0; i < names.length; i++) {
+        Object value;
+        if (subs[i] != null) {
+          value = subs[i].apply(current.containsField(names[i]) ? current.get(names[i]) : MISSING, root);
+        } else if (values[i] != null) {
+          value = values[i].evaluate(root);
+        } else {
+          value = current.containsField(names[i]) ? current.get(names[i]) : MISSING;
+        }
+        if (value != MISSING) {
+          result.put(names[i], value);
+        }
+      }
+      return result;
+    }
+
+    private Object apply(Object value, DBObject root) {
+      if (value instanceof List) {
+        BasicDBList values = new BasicDBList();
+        for (Object element : (List<?>) value) {
+          Object subValue = apply(element, root);
+          if (subValue != MISSING) {
+            values.add(subValue);
+          }
+        }
+        return values;
+      }
+      if (value instanceof DBObject) {
+        return project((DBObject) value, root);
+      }
+      return computed ? project(new BasicDBObject(), root) : MISSING;
+    }
+  }
+
+  /**
+   * Gather the fields of a $project : the "a.b" fields go into the subprojection "a".
+   */
+  private static final class ProjectionBuilder {
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+    /**
+     * @param expression null for an included field.
+     */
+    void put(String name, Expression expression) {
+      int indexDot = name.indexOf('.');
+      if (indexDot > 0) {
+        sub(name.substring(0, indexDot)).put(name.substring(indexDot + 1), expression);
+      } else {
+        fields.put(name, expression);
+      }
+    }
+
+    ProjectionBuilder sub(String name) {
+      int indexDot = name.indexOf('.');
+      if (indexDot > 0) {
+        return sub(name.substring(0, indexDot)).sub(name.substring(indexDot + 1));
+      }
+      Object builder = fields.get(name);
+      if (!(builder instanceof ProjectionBuilder)) {
+        builder = new ProjectionBuilder();
+        fields.put(name, builder);
+      }
+      return (ProjectionBuilder) builder;
+    }
+
+    Projection build() {
+      String[] names = new String[fields.size()];
+      Expression[] values = new Expression[fields.size()];
+      Projection[] subs = new Projection[fields.size()];
+      int i = 0;
+      for (Map.Entry<String, Object> entry : fields.entrySet()) {
+        names[i] = entry.getKey();
+        if (entry.getValue() instanceof ProjectionBuilder) {
+          subs[i] = ((ProjectionBuilder) entry.getValue()).build();
+        } else {
+          values[i] = (Expression) entry.getValue();
+        }
+        i++;
+      }
+      return new Projection(names, values, subs);
+    }
+  }
+
+  /**
+   * An operator whose result is computed once when all its operands are literals.
+   */
+  abstract static class Operator extends Expression {
+    final Expression[] operands;
+
+    Operator(Expression... operands) {
+      this.operands = operands;
+    }
+
+    @Override
+    Expression fold() {
+      return allConstant(operands) ? new Literal(evaluate(null)) : this;
+    }
+  }
+
+  static final class Concat extends Operator {
+    Concat(Expression[] operands) {
+      super(operands);
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      StringBuilder sb = new StringBuilder();
+      for (Expression operand : operands) {
+        Object value = operand.value(object);
+        if (value == null) {
+          return null;
+        }
+        sb.append(value);
+      }
+      return sb.toString();
+    }
+  }
+
+  static final class Substr extends Operator {
+    Substr(Expression[] operands) {
+      super(operands);
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object value = operands[0].value(object);
+      if (value == null) {
+        return "";
+      }
+      String string = value.toString();
+      int start = ((Number) operands[1].value(object)).intValue();
+      int length = ((Number) operands[2].value(object)).intValue();
+      if (start >= string.length()) {
+        return "";
+      }
+      return length < 0 || start + length > string.length() ? string.substring(start) : string.substring(start, start + length);
+    }
+  }
+
+  static final class ToCase extends Operator {
+    private final boolean upper;
+
+    ToCase(Expression operand, boolean upper) {
+      super(operand);
+      this.upper = upper;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object value = operands[0].value(object);
+      if (value == null) {
+        return "";
+      }
+      return upper ? value.toString().toUpperCase() : value.toString().toLowerCase();
+    }
+  }
+
+  /**
+   * $cmp compares any values, $strcasecmp their strings.
+   */
+  static final class Cmp extends Operator {
+    private final boolean ignoreCase;
+
+    Cmp(Expression[] operands, boolean ignoreCase) {
+      super(operands);
+      this.ignoreCase = ignoreCase;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object value1 = operands[0].value(object);
+      Object value2 = operands[1].value(object);
+      if (ignoreCase) {
+        return Integer.signum(String.valueOf(value1 == null ? "" : value1).compareToIgnoreCase(String.valueOf(value2 == null ? "" : value2)));
+      }
+      if (value1 == null || value2 == null) {
+        // null is before all the values.
+        return value1 == value2 ? 0 : (value1 == null ? -1 : 1);
+      }
+      return Integer.signum(Group.compare(value1, value2));
+    }
+  }
+
+  static final class IfNull extends Operator {
+    IfNull(Expression[] operands) {
+      super(operands);
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object value = operands[0].value(object);
+      return value == null ? operands[1].evaluate(object) : value;
+    }
+  }
+
+  static final class Divide extends Operator {
+    private final DBCollection coll;
+
+    Divide(DBCollection coll, Expression[] operands) {
+      super(operands);
+      this.coll = coll;
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object dividend = operands[0].value(object);
+      Object divisor = operands[1].value(object);
+      if (dividend == null || divisor == null) {
+        return null;
+      }
+      if (!(dividend instanceof Number) || !(divisor instanceof Number)) {
+        PipelineKeyword.errorResult(coll, 16609, "exception: $divide only supports numeric types, not " + dividend.getClass().getSimpleName() + " and " + divisor.getClass().getSimpleName());
+      }
+      double divisorValue = ((Number) divisor).doubleValue();
+      if (divisorValue == 0D) {
+        PipelineKeyword.errorResult(coll, 16608, "exception: can't $divide by zero");
+      }
+      return ((Number) dividend).doubleValue() / divisorValue;
+    }
+  }
+
+  /**
+   * The field of the calendar read by a date operator, and what to add to have the value of MongoDB.
+   */
+  static final class DateField {
+    static final Map<String, DateField> FIELDS = new LinkedHashMap<String, DateField>();
+
+    static {
+      FIELDS.put("$dayOfYear", new DateField(Calendar.DAY_OF_YEAR, 0));
+      FIELDS.put("$dayOfMonth", new DateField(Calendar.DAY_OF_MONTH, 0));
+      FIELDS.put("$dayOfWeek", new DateField(Calendar.DAY_OF_WEEK, 0));
+      FIELDS.put("$year", new DateField(Calendar.YEAR, 0));
+      FIELDS.put("$month", new DateField(Calendar.MONTH, 1));
+      FIELDS.put("$week", new DateField(Calendar.WEEK_OF_YEAR, -1));
+      FIELDS.put("$hour", new DateField(Calendar.HOUR_OF_DAY, 0));
+      FIELDS.put("$minute", new DateField(Calendar.MINUTE, 0));
+      FIELDS.put("$second", new DateField(Calendar.SECOND, 0));
+      FIELDS.put("$millisecond", new DateField(Calendar.MILLISECOND, 0));
+    }
+
+    private final int calendarField;
+    private final int modifier;
+
+    private DateField(int calendarField, int modifier) {
+      this.calendarField = calendarField;
+      this.modifier = modifier;
+    }
+  }
+
+  /**
+   * http://docs.mongodb.org/manual/reference/operator/aggregation-date/
+   */
+  static final class DatePart extends Operator {
+    // A calendar by thread, the groups are computed by several threads.
+    private static final ThreadLocal<Calendar> CALENDAR = new ThreadLocal<Calendar>() {
+      @Override
+      protected Calendar initialValue() {
+        return Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.ENGLISH);
+      }
+    };
+
+    private final DBCollection coll;
+    private final String operator;
+    private final DateField dateField;
+
+    DatePart(DBCollection coll, String operator, Expression operand) {
+      super(operand);
+      this.coll = coll;
+      this.operator = operator;
+      this.dateField = DateField.FIELDS.get(operator);
+    }
+
+    @Override
+    Object evaluate(DBObject object) {
+      Object value = operands[0].value(object);
+      if (!(value instanceof Date)) {
+        PipelineKeyword.errorResult(coll, 16006, "exception: can't convert from BSON type " + (value == null ? "NULL" : value.getClass().getSimpleName()) + " to Date for " + operator);
+      }
+      Calendar calendar = CALENDAR.get();
+      calendar.setTimeInMillis(((Date) value).getTime());
+      return calendar.get(dateField.calendarField) + dateField.modifier;
+    }
+  }
+}
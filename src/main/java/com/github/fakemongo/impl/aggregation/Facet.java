@@ -0,0 +1,134 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Aggregator;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/facet/#pipe._S_facet}
+ * <p/>
+ * The documents of the previous stage are read once, then given to each sub-pipeline : they are run by the threads of
+ * the executor, the first one by the calling thread. The stages never modify their input documents, so the
+ * sub-pipelines share them. The result is one document, with the documents of each sub-pipeline.
+ */
+@ThreadSafe
+public class Facet extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Facet.class);
+
+  public static final Facet INSTANCE = new Facet();
+
+  private Facet() {
+  }
+
+  @Override
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object) {
+    return apply(coll, input, object, false);
+  }
+
+  @Override
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object, boolean allowDiskUse) {
+    return apply(coll, input, object, allowDiskUse, 0L);
+  }
+
+  /**
+   * The sub-pipelines check the deadline of the aggregation too.
+   */
+  @Override
+  public Iterator<DBObject> apply(final FongoDBCollection coll, final Iterator<DBObject> input, DBObject object, boolean allowDiskUse, final long deadline) {
+    Object parameter = object.get(getKeyword());
+    if (!(parameter instanceof DBObject) || parameter instanceof List || ((DBObject) parameter).keySet().isEmpty()) {
+      errorResult(coll, 40169, "exception: the $facet specification must be a non-empty object");
+    }
+    final Map<String, Aggregator> facets = new LinkedHashMap<String, Aggregator>();
+    for (Map.Entry<String, Object> entry : Util.entrySet((DBObject) parameter)) {
+      if (!(entry.getValue() instanceof List)) {
+        errorResult(coll, 40170, "exception: arguments to $facet must be arrays, " + entry.getKey() + " is type " + (entry.getValue() == null ? null : entry.getValue().getClass().getSimpleName()));
+      }
+      @SuppressWarnings("unchecked") List<DBObject> pipeline = (List<DBObject>) entry.getValue();
+      for (DBObject stage : pipeline) {
+        if (canApply(stage) || Out.INSTANCE.canApply(stage)) {
+          errorResult(coll, 40600, "exception: " + stage.keySet().iterator().next() + " is not allowed to be used within a $facet stage");
+        }
+      }
+      facets.put(entry.getKey(), new Aggregator((FongoDB) coll.getDB(), coll, pipeline, 0L, allowDiskUse));
+    }
+
+    return new Stage() {
+      private boolean done;
+
+      @Override
+      protected DBObject computeNext() {
+        if (done) {
+          return null;
+        }
+        done = true;
+        return facet(input, facets, deadline);
+      }
+    };
+  }
+
+  private DBObject facet(Iterator<DBObject> input, Map<String, Aggregator> facets, final long deadline) {
+    List<DBObject> documents = new ArrayList<DBObject>();
+    while (input.hasNext()) {
+      documents.add(input.next());
+    }
+    final List<DBObject> shared = Collections.unmodifiableList(documents);
+    LOG.debug("facet() : {} documents for {}", shared.size(), facets.keySet());
+
+    List<Future<BasicDBList>> running = new ArrayList<Future<BasicDBList>>();
+    DBObject result = new BasicDBObject();
+    try {
+      Iterator<Aggregator> aggregators = facets.values().iterator();
+      Aggregator first = aggregators.next();
+      while (aggregators.hasNext()) {
+        final Aggregator aggregator = aggregators.next();
+        running.add(executor().submit(new Callable<BasicDBList>() {
+          @Override
+          public BasicDBList call() {
+            return facet(aggregator, shared, deadline);
+          }
+        }));
+      }
+      Iterator<String> names = facets.keySet().iterator();
+      result.put(names.next(), facet(first, shared, deadline));
+      for (Future<BasicDBList> future : running) {
+        result.put(names.next(), get(future));
+      }
+    } finally {
+      for (Future<BasicDBList> future : running) {
+        future.cancel(true);
+      }
+    }
+    return result;
+  }
+
+  private static BasicDBList facet(Aggregator aggregator, List<DBObject> documents, long deadline) {
+    BasicDBList results = new BasicDBList();
+    Iterator<DBObject> iterator = aggregator.apply(documents.iterator(), deadline);
+    while (iterator.hasNext()) {
+      results.add(iterator.next());
+    }
+    return results;
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$facet";
+  }
+
+}
@@ -1,23 +1,36 @@
 package com.github.fakemongo.impl.aggregation;
 
+import com.github.fakemongo.FongoException;
+import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import org.bson.util.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@see http://docs.mongodb.org/manual/reference/aggregation/group/}
+ * <p/>
+ * The documents are read once : each one goes into the accumulators of its group, found by a hash of its _id.
  */
 @ThreadSafe
 public class Group extends PipelineKeyword {
@@ -25,28 +38,13 @@ public class Group extends PipelineKeyword {
 
   public static final Group INSTANCE = new Group();
 
-  static class Mapping {
-    private final DBObject key;
+  // A group in the map, without its _id and accumulators.
+  private static final long GROUP_OVERHEAD = 64;
 
-    private final DBCollection collection;
+  private static final ExpressionParser EXPRESSION_PARSER = new ExpressionParser();
 
-    private final DBObject result;
-
-    public Mapping(DBObject key, DBCollection collection, DBObject result) {
-      this.key = key;
-      this.collection = collection;
-      this.result = result;
-    }
-
-    @Override
-    public String toString() {
-      return "Mapping{" +
-          "keyword=" + key +
-          ", collection=" + collection +
-          ", result=" + result +
-          '}';
-    }
-  }
+  // Documents grouped by a thread at once : the smaller inputs are grouped by the pipeline thread.
+  static final int PARALLEL_CHUNK = 10000;
 
   private Group() {
   }
@@ -55,50 +53,50 @@ public class Group extends PipelineKeyword {
   static enum GroupKeyword {
     MIN("$min") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, 1);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new MinMax(field, 1);
       }
     },
     MAX("$max") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, -1);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new MinMax(field, -1);
       }
     },
     FIRST("$first", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, true);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new FirstLast(field, true);
       }
     },
     LAST("$last", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, false);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new FirstLast(field, false);
       }
     },
     AVG("$avg") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return avg(coll, keywordParameter);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new Avg(field);
       }
     },
     SUM("$sum") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return sum(coll, keywordParameter);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? new Count((Number) keywordParameter) : new Sum(field);
       }
     },
     PUSH("$push") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, false);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new PushAddToSet(field, false);
       }
     },
     ADD_TO_SET("$addToSet") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, true);
+      Accumulator accumulator(Expression field, Object keywordParameter) {
+        return field == null ? null : new PushAddToSet(field, true);
       }
     };
 
@@ -115,10 +113,27 @@ public class Group extends PipelineKeyword {
       this.canReturnNull = canReturnNull;
     }
 
-    abstract Object work(DBCollection coll, Object keywordParameter);
+    /**
+     * @param field            the value to accumulate, null if the parameter is a constant.
+     * @param keywordParameter the parameter of the keyword.
+     * @return a new accumulator for a group, null if the parameter is not handled.
+     */
+    abstract Accumulator accumulator(Expression field, Object keywordParameter);
 
-    public Object apply(DBCollection coll, DBObject parameter) {
-      return work(coll, parameter.get(keyword));
+    /**
+     * @return the "$field" or the operator accumulated, null if the parameter is a constant.
+     */
+    Expression compile(FongoDBCollection coll, DBObject parameter) {
+      Expression expression = Expression.compile(coll, parameter.get(keyword));
+      return expression.isConstant() ? null : expression;
+    }
+
+    public Accumulator newAccumulator(Expression field, DBObject parameter) {
+      Accumulator accumulator = accumulator(field, parameter.get(keyword));
+      if (accumulator == null) {
+        LOG.error("Sorry, doesn't know what to do with {}", parameter);
+      }
+      return accumulator;
     }
 
     public boolean canApply(DBObject parameter) {
@@ -130,347 +145,763 @@ public class Group extends PipelineKeyword {
     }
   }
 
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    DBObject group = (DBObject) object.get(getKeyword());
+  /**
+   * State of a keyword for one group, updated with each document of the group. The state is serialized when the groups
+   * are spilled to disk : the expression of the accumulated value is not.
+   */
+  abstract static class Accumulator implements Serializable {
+    /**
+     * @return the memory taken by the document in the state, in bytes.
+     */
+    abstract long accumulate(DBObject object);
 
-    Object id = ((DBObject) object.get(getKeyword())).removeField(FongoDBCollection.ID_KEY);
-    LOG.debug("group() for _id : {}", id);
-    // Try to group in the mapping.
-    Map<DBObject, Mapping> mapping = createMapping(coll, id);
+    /**
+     * @param later the state of the same keyword and group, for the documents following the documents of this state.
+     */
+    abstract void merge(Accumulator later);
 
-    //noinspection unchecked
-    for (Map.Entry<String, Object> entry : ((Set<Map.Entry<String, Object>>) group.toMap().entrySet())) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-      if (value instanceof DBObject) {
-        DBObject objectValue = (DBObject) value;
-        for (Map.Entry<DBObject, Mapping> entryMapping : mapping.entrySet()) {
-          DBCollection workColl = entryMapping.getValue().collection;
-          for (GroupKeyword keyword : GroupKeyword.values()) {
-            if (keyword.canApply(objectValue)) {
-              Object result = keyword.apply(workColl, objectValue);
-              if (result != null || keyword.isCanReturnNull()) {
-                LOG.debug("_id:{}, keyword:{}, result:{}", entryMapping.getKey(), key, result);
-                entryMapping.getValue().result.put(key, result);
-              } else {
-                LOG.warn("result is null for entry {}", entry);
-              }
-              break;
-            }
+    abstract Object result();
+  }
+
+  /**
+   * A field of the result : the accumulators of a keyword.
+   */
+  private static class Field {
+    private final String name;
+    private final GroupKeyword keyword;
+    private final DBObject parameter;
+    private final Expression expression;
+
+    Field(FongoDBCollection coll, String name, GroupKeyword keyword, DBObject parameter) {
+      this.name = name;
+      this.keyword = keyword;
+      this.parameter = parameter;
+      this.expression = keyword.compile(coll, parameter);
+    }
+  }
+
+  @Override
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object) {
+    return apply(coll, input, object, false);
+  }
+
+  /**
+   * The documents of the previous stage are all read when the first group is pulled. Past {@link #MAX_MEMORY}, the
+   * groups are written to temporary files if allowed.
+   */
+  @Override
+  public Iterator<DBObject> apply(final FongoDBCollection coll, final Iterator<DBObject> input, final DBObject object, final boolean allowDiskUse) {
+    DBObject group = (DBObject) object.get(getKeyword());
+    LOG.debug("group() for _id : {}", group.get(FongoDBCollection.ID_KEY));
+    final Expression id = Expression.compile(coll, group.get(FongoDBCollection.ID_KEY));
+
+    final List<Field> fields = new ArrayList<Field>();
+    for (Map.Entry<String, Object> entry : Util.entrySet(group)) {
+      if (!FongoDBCollection.ID_KEY.equals(entry.getKey()) && entry.getValue() instanceof DBObject) {
+        DBObject objectValue = (DBObject) entry.getValue();
+        for (GroupKeyword keyword : GroupKeyword.values()) {
+          if (keyword.canApply(objectValue)) {
+            fields.add(new Field(coll, entry.getKey(), keyword, objectValue));
+            break;
           }
         }
       }
     }
 
-    coll = dropAndInsert(coll, new ArrayList<DBObject>());
+    return new Stage() {
+      private Iterator<DBObject> groups;
 
-    // Extract from mapping to do the result.
-    for (Map.Entry<DBObject, Mapping> entry : mapping.entrySet()) {
-      coll.insert(entry.getValue().result);
-      entry.getValue().collection.drop();
+      @Override
+      protected DBObject computeNext() {
+        if (groups == null) {
+          groups = group(coll, input, id, fields, allowDiskUse);
+        }
+        return groups.hasNext() ? groups.next() : null;
+      }
+    };
+  }
+
+  /**
+   * Past one chunk of documents, the chunks are grouped by the threads of the executor, and their groups merged in the
+   * order of the chunks. In a thread of the executor (a sub-pipeline of $facet), the chunks are grouped one by one.
+   */
+  private Iterator<DBObject> group(FongoDBCollection coll, Iterator<DBObject> input, Expression id, List<Field> fields, boolean allowDiskUse) {
+    Groups groups = new Groups(coll, id, fields, allowDiskUse, false);
+    List<DBObject> chunk = readChunk(input);
+    if (!input.hasNext() || inExecutor()) {
+      groups.addAll(chunk);
+      while (input.hasNext()) {
+        groups.addAll(readChunk(input));
+      }
+      return groups.results();
     }
 
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("group() : {} result : {}", object, coll.find().toArray());
+    LinkedList<Future<Groups>> running = new LinkedList<Future<Groups>>();
+    boolean done = false;
+    try {
+      running.add(executor().submit(new ChunkGrouping(new Groups(coll, id, fields, allowDiskUse, true), chunk)));
+      while (input.hasNext()) {
+        running.add(executor().submit(new ChunkGrouping(new Groups(coll, id, fields, allowDiskUse, true), readChunk(input))));
+        // Don't read the whole input before the threads are done.
+        if (running.size() > 2 * PARALLELISM) {
+          groups.merge(get(running.removeFirst()));
+        }
+      }
+      while (!running.isEmpty()) {
+        groups.merge(get(running.removeFirst()));
+      }
+      done = true;
+    } finally {
+      for (Future<Groups> future : running) {
+        future.cancel(true);
+      }
+      if (!done) {
+        groups.delete();
+      }
+    }
+    return groups.results();
+  }
+
+  private static List<DBObject> readChunk(Iterator<DBObject> input) {
+    List<DBObject> chunk = new ArrayList<DBObject>(PARALLEL_CHUNK);
+    while (chunk.size() < PARALLEL_CHUNK && input.hasNext()) {
+      chunk.add(input.next());
+    }
+    return chunk;
+  }
+
+  private static final class ChunkGrouping implements Callable<Groups> {
+    private final Groups groups;
+    private final List<DBObject> chunk;
+
+    ChunkGrouping(Groups groups, List<DBObject> chunk) {
+      this.groups = groups;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public Groups call() {
+      groups.addAll(chunk);
+      return groups;
     }
-    return coll;
   }
 
   /**
-   * Create mapping. Group result with a 'keyword'.
-   *
-   * @param coll collection to be mapped
-   * @param id   id of the group
-   * @return a (Criteria, Mapping) for the id.
+   * The groups of some documents, in the order of their first document, and the memory they take.
    */
-  private Map<DBObject, Mapping> createMapping(DBCollection coll, Object id) {
-    Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
-    List<DBObject> objects = coll.find().toArray();
-    for (DBObject dbObject : objects) {
-      DBObject criteria = criteriaForId(id, dbObject);
-      if (!mapping.containsKey(criteria)) {
-        // Return all object we can group
-        List<DBObject> newCollection = coll.find(criteria).toArray();
-        // Delete them from collection (optim for laaaaaarge collection)
-        for (DBObject o : newCollection) {
-          coll.remove(new BasicDBObject(FongoDBCollection.ID_KEY, o.get(FongoDBCollection.ID_KEY)));
+  private static final class Groups {
+    private final FongoDBCollection coll;
+    private final Expression id;
+    private final List<Field> fields;
+    private final boolean allowDiskUse;
+    // The groups of a chunk are bounded by the size of the chunk, they are spilled once merged.
+    private final boolean chunk;
+    private final Map<GroupKey, Accumulator[]> groups = new LinkedHashMap<GroupKey, Accumulator[]>();
+    private long memory;
+    private Partitions partitions;
+
+    Groups(FongoDBCollection coll, Expression id, List<Field> fields, boolean allowDiskUse, boolean chunk) {
+      this.coll = coll;
+      this.id = id;
+      this.fields = fields;
+      this.allowDiskUse = allowDiskUse;
+      this.chunk = chunk;
+    }
+
+    void addAll(List<DBObject> dbObjects) {
+      for (DBObject dbObject : dbObjects) {
+        GroupKey key = new GroupKey(id.value(dbObject));
+        Accumulator[] accumulators = groups.get(key);
+        if (accumulators == null) {
+          accumulators = new Accumulator[fields.size()];
+          for (int i = 0; i < accumulators.length; i++) {
+            Field field = fields.get(i);
+            accumulators[i] = field.keyword.newAccumulator(field.expression, field.parameter);
+          }
+          groups.put(key, accumulators);
+          memory += groupSize(key);
+        }
+        for (Accumulator accumulator : accumulators) {
+          if (accumulator != null) {
+            memory += accumulator.accumulate(dbObject);
+          }
+        }
+        checkMemory();
+      }
+    }
+
+    /**
+     * @param later the groups of the documents following the documents of this groups.
+     */
+    void merge(Groups later) {
+      memory += later.memory;
+      for (Map.Entry<GroupKey, Accumulator[]> entry : later.groups.entrySet()) {
+        if (merge(entry.getKey(), entry.getValue())) {
+          memory -= groupSize(entry.getKey());
         }
-        // Generate keyword
-        DBObject key = keyForId(id, dbObject);
-        // Save into mapping
-        mapping.put(criteria, new Mapping(key, createAndInsert(newCollection), Util.clone(key)));
-        LOG.trace("createMapping() new criteria : {}", criteria);
       }
+      checkMemory();
+    }
+
+    /**
+     * @return true if the group was already there.
+     */
+    private boolean merge(GroupKey key, Accumulator[] later) {
+      Accumulator[] accumulators = groups.get(key);
+      if (accumulators == null) {
+        groups.put(key, later);
+        return false;
+      }
+      for (int i = 0; i < accumulators.length; i++) {
+        if (accumulators[i] != null) {
+          accumulators[i].merge(later[i]);
+        }
+      }
+      return true;
+    }
+
+    private long groupSize(GroupKey key) {
+      return GROUP_OVERHEAD + memorySize(key.id) + 8 * fields.size();
+    }
+
+    private void checkMemory() {
+      if (memory > MAX_MEMORY) {
+        if (!allowDiskUse) {
+          errorResult(coll, 16945, "exception: Exceeded memory limit for $group, but didn't allow external sort. Pass allowDiskUse:true to opt in.");
+        }
+        if (!chunk) {
+          spill();
+        }
+      }
+    }
+
+    private void spill() {
+      if (partitions == null) {
+        partitions = new Partitions();
+      }
+      LOG.debug("group() : {} groups in about {} bytes spilled to disk", groups.size(), memory);
+      partitions.write(groups);
+      groups.clear();
+      memory = 0;
+    }
+
+    /**
+     * @return the groups, read back from the disk by partition if they were spilled.
+     */
+    Iterator<DBObject> results() {
+      if (partitions == null) {
+        return list().iterator();
+      }
+      // The last groups are spilled too : the states of a group are merged in the order of the documents.
+      spill();
+      return new Stage() {
+        private int partition = 0;
+        private Iterator<DBObject> results = Collections.<DBObject>emptyList().iterator();
+
+        @Override
+        protected DBObject computeNext() {
+          while (!results.hasNext() && partition < Partitions.PARTITIONS) {
+            Groups merged = new Groups(coll, id, fields, allowDiskUse, true);
+            partitions.read(partition++, merged);
+            results = merged.list().iterator();
+          }
+          return results.hasNext() ? results.next() : null;
+        }
+      };
+    }
+
+    void delete() {
+      if (partitions != null) {
+        partitions.delete();
+      }
+    }
+
+    private List<DBObject> list() {
+      LOG.debug("group() : {} groups in about {} bytes", groups.size(), memory);
+      List<DBObject> results = new ArrayList<DBObject>(groups.size());
+      for (Map.Entry<GroupKey, Accumulator[]> entry : groups.entrySet()) {
+        DBObject result = new BasicDBObject(FongoDBCollection.ID_KEY, entry.getKey().id);
+        Accumulator[] accumulators = entry.getValue();
+        for (int i = 0; i < accumulators.length; i++) {
+          Field field = fields.get(i);
+          Object value = accumulators[i] == null ? null : accumulators[i].result();
+          if (value != null || field.keyword.isCanReturnNull()) {
+            result.put(field.name, value);
+          } else {
+            LOG.warn("result is null for entry {}", field.name);
+          }
+        }
+        results.add(result);
+      }
+      return results;
     }
-    return mapping;
   }
 
   /**
-   * Get the keyword from the "_id".
-   *
-   * @param id
-   * @param dbObject
-   * @return
+   * The groups spilled to disk : each group goes into a temporary file chosen by the hash of its _id, with the state of
+   * its accumulators. A group can be written several times, its states are merged when its file is read back.
    */
+  private static final class Partitions {
+    static final int PARTITIONS = 16;
+
+    private final SpillFile[] files = new SpillFile[PARTITIONS];
+    private final ObjectOutputStream[] outputs = new ObjectOutputStream[PARTITIONS];
+    private final int[] counts = new int[PARTITIONS];
+
+    void write(Map<GroupKey, Accumulator[]> groups) {
+      try {
+        for (Map.Entry<GroupKey, Accumulator[]> entry : groups.entrySet()) {
+          int hash = entry.getKey().hashCode();
+          int partition = ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % PARTITIONS;
+          if (outputs[partition] == null) {
+            files[partition] = new SpillFile();
+            outputs[partition] = new ObjectOutputStream(files[partition].openOutput());
+          }
+          outputs[partition].writeObject(entry.getKey().id);
+          outputs[partition].writeObject(entry.getValue());
+          // Don't keep the objects written.
+          outputs[partition].reset();
+          counts[partition]++;
+        }
+      } catch (IOException e) {
+        delete();
+        throw new FongoException("can't write the groups in a temporary file", e);
+      }
+    }
 
-  private DBObject keyForId(Object id, DBObject dbObject) {
-    DBObject result = new BasicDBObject();
-    if (id instanceof DBObject) {
-      //ex: { "state" : "$state" , "city" : "$city"}
-      DBObject subKey = new BasicDBObject();
-      //noinspection unchecked
-      for (Map.Entry<String, Object> entry : (Set<Map.Entry<String, Object>>) ((DBObject) id).toMap().entrySet()) {
-        subKey.put(entry.getKey(), Util.extractField(dbObject, fieldName(entry.getValue()))); // TODO : hierarchical, like "state" : {bar:"$foo"}
-      }
-      result.put(FongoDBCollection.ID_KEY, subKey);
-    } else if (id != null) {
-      String field = fieldName(id);
-      result.put(FongoDBCollection.ID_KEY, Util.extractField(dbObject, field));
-    } else {
-      result.put(FongoDBCollection.ID_KEY, null);
+    /**
+     * Merge the groups of the partition, then delete its file.
+     */
+    void read(int partition, Groups groups) {
+      if (files[partition] == null) {
+        return;
+      }
+      SpillFile.close(outputs[partition]);
+      ObjectInputStream input = null;
+      try {
+        input = new ObjectInputStream(files[partition].openInput());
+        for (int i = 0; i < counts[partition]; i++) {
+          Object id = input.readObject();
+          groups.merge(new GroupKey(id), (Accumulator[]) input.readObject());
+        }
+      } catch (IOException e) {
+        delete();
+        throw new FongoException("can't read the groups of " + files[partition], e);
+      } catch (ClassNotFoundException e) {
+        delete();
+        throw new FongoException("can't read the groups of " + files[partition], e);
+      } finally {
+        if (input != null) {
+          SpillFile.close(input);
+        }
+        files[partition].delete();
+        files[partition] = null;
+      }
     }
-    LOG.debug("keyForId() id:{}, dbObject:{}, result:{}", id, dbObject, result);
-    return result;
-  }
 
-  private DBObject criteriaForId(Object id, DBObject dbObject) {
-    DBObject result = new BasicDBObject();
-    if (id instanceof DBObject) {
-      //noinspection unchecked
-      for (Map.Entry<String, Object> entry : (Set<Map.Entry<String, Object>>) ((DBObject) id).toMap().entrySet()) {
-        result.put(entry.getKey(), Util.extractField(dbObject, fieldName(entry.getValue()))); // TODO : hierarchical, like "state" : {bar:"$foo"}
+    void delete() {
+      for (int i = 0; i < PARTITIONS; i++) {
+        if (files[i] != null) {
+          SpillFile.close(outputs[i]);
+          files[i].delete();
+          files[i] = null;
+        }
       }
-    } else if (id != null) {
-      String field = fieldName(id);
-      result.put(field, Util.extractField(dbObject, field));
     }
-    LOG.debug("criteriaForId() id:{}, dbObject:{}, result:{}", id, dbObject, result);
-    return result;
   }
 
-  private static String fieldName(Object name) {
-    String field = name.toString();
-    if (name instanceof String) {
-      if (name.toString().startsWith("$")) {
-        field = name.toString().substring(1);
+  /**
+   * The _id of a group in the hash map : the numbers are equal if they have the same value, whatever their type.
+   */
+  static final class GroupKey {
+    private final Object id;
+    private final int hash;
+
+    GroupKey(Object id) {
+      this.id = id;
+      this.hash = hash(id);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof GroupKey && hash == ((GroupKey) o).hash && same(id, ((GroupKey) o).id);
+    }
+
+    private static int hash(Object value) {
+      if (value instanceof Number) {
+        double number = ((Number) value).doubleValue();
+        long bits = Double.doubleToLongBits(number == 0 ? 0 : number);
+        return (int) (bits ^ (bits >>> 32));
+      }
+      if (value instanceof List) {
+        int hash = 1;
+        for (Object element : (List) value) {
+          hash = 31 * hash + hash(element);
+        }
+        return hash;
+      }
+      if (value instanceof DBObject) {
+        int hash = 7;
+        for (Map.Entry<String, Object> entry : Util.entrySet((DBObject) value)) {
+          hash = 31 * (31 * hash + entry.getKey().hashCode()) + hash(entry.getValue());
+        }
+        return hash;
+      }
+      if (value instanceof byte[]) {
+        return Arrays.hashCode((byte[]) value);
+      }
+      return value == null ? 0 : value.hashCode();
+    }
+
+    private static boolean same(Object value1, Object value2) {
+      if (value1 instanceof Number && value2 instanceof Number) {
+        if ((value1 instanceof Double || value1 instanceof Float) || (value2 instanceof Double || value2 instanceof Float)) {
+          return ((Number) value1).doubleValue() == ((Number) value2).doubleValue();
+        }
+        return ((Number) value1).longValue() == ((Number) value2).longValue();
+      }
+      if (value1 instanceof List && value2 instanceof List) {
+        List list1 = (List) value1;
+        List list2 = (List) value2;
+        if (list1.size() != list2.size()) {
+          return false;
+        }
+        for (int i = 0; i < list1.size(); i++) {
+          if (!same(list1.get(i), list2.get(i))) {
+            return false;
+          }
+        }
+        return true;
       }
+      if (value1 instanceof DBObject && value2 instanceof DBObject && !(value1 instanceof List) && !(value2 instanceof List)) {
+        Set<Map.Entry<String, Object>> entries1 = Util.entrySet((DBObject) value1);
+        Set<Map.Entry<String, Object>> entries2 = Util.entrySet((DBObject) value2);
+        if (entries1.size() != entries2.size()) {
+          return false;
+        }
+        Iterator<Map.Entry<String, Object>> iterator2 = entries2.iterator();
+        for (Map.Entry<String, Object> entry1 : entries1) {
+          Map.Entry<String, Object> entry2 = iterator2.next();
+          if (!entry1.getKey().equals(entry2.getKey()) || !same(entry1.getValue(), entry2.getValue())) {
+            return false;
+          }
+        }
+        return true;
+      }
+      if (value1 instanceof byte[] && value2 instanceof byte[]) {
+        return Arrays.equals((byte[]) value1, (byte[]) value2);
+      }
+      return value1 == null ? value2 == null : value1.equals(value2);
     }
-    return field;
   }
 
   /**
    * {@see http://docs.mongodb.org/manual/reference/aggregation/sum/#grp._S_sum}
-   *
-   * @param coll
-   * @param value
-   * @return
+   * <p/>
+   * The integers are added in a long, and the result is an Integer if it fits, else a Long. The sum becomes a double
+   * when a double is added, or when the long overflows. The values which are not numbers are ignored.
    */
-  private static Object sum(DBCollection coll, Object value) {
-    Number result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
-          }
-        }
+  static class Sum extends Accumulator {
+    private final transient Expression field;
+    long count;
+    private long longSum;
+    private double doubleSum;
+    private boolean isLong;
+    private boolean isDouble;
+
+    Sum(Expression field) {
+      this.field = field;
+    }
+
+    @Override
+    long accumulate(DBObject object) {
+      Object value = field.value(object);
+      if (value instanceof Number) {
+        add((Number) value);
       }
-    } else {
-      Number iValue = (Number) value;
-      // TODO : handle null value ?
-      if (iValue instanceof Float || iValue instanceof Double) {
-        result = coll.count() * iValue.doubleValue();
-      } else if (iValue instanceof Byte || iValue instanceof Short || iValue instanceof Integer) {
-        result = intOrLong(coll.count() * iValue.longValue());
-      } else if (iValue instanceof Long) {
-        result = coll.count() * iValue.longValue();
+      return 0;
+    }
+
+    void add(Number value) {
+      count++;
+      if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+        addLong(value.longValue(), value instanceof Long);
       } else {
-        LOG.warn("type of field not handled for sum: {}", result.getClass());
+        addDouble(value.doubleValue());
       }
     }
-    return result;
+
+    private void addLong(long other, boolean otherIsLong) {
+      if (isDouble) {
+        doubleSum += other;
+        return;
+      }
+      long sum = longSum + other;
+      if (((longSum ^ sum) & (other ^ sum)) < 0) {
+        // Overflow.
+        isDouble = true;
+        doubleSum = (double) longSum + (double) other;
+      } else {
+        longSum = sum;
+        isLong |= otherIsLong;
+      }
+    }
+
+    private void addDouble(double other) {
+      if (!isDouble) {
+        isDouble = true;
+        doubleSum = longSum;
+      }
+      doubleSum += other;
+    }
+
+    @Override
+    void merge(Accumulator later) {
+      Sum other = (Sum) later;
+      count += other.count;
+      if (other.isDouble) {
+        addDouble(other.doubleSum);
+      } else {
+        addLong(other.longSum, other.isLong);
+      }
+    }
+
+    double doubleValue() {
+      return isDouble ? doubleSum : (double) longSum;
+    }
+
+    @Override
+    Object result() {
+      if (count == 0) {
+        return null;
+      }
+      if (isDouble) {
+        return doubleSum;
+      }
+      return isLong ? Long.valueOf(longSum) : intOrLong(longSum);
+    }
   }
 
   /**
-   * return Integer if the parameter could be safely cast to an integer
-   *
-   * @param number
-   * @return
+   * {@see http://docs.mongodb.org/manual/reference/aggregation/sum/#grp._S_sum} of a constant : count * value.
    */
-  private static Number intOrLong(long number) {
-    if (number <= Integer.MAX_VALUE && number >= Integer.MIN_VALUE) {
-      return (int) number;
-    } else {
-      return number;
+  static class Count extends Accumulator {
+    private final Number value;
+    private long count;
+
+    Count(Number value) {
+      this.value = value;
+    }
+
+    @Override
+    long accumulate(DBObject object) {
+      count++;
+      return 0;
+    }
+
+    @Override
+    void merge(Accumulator later) {
+      count += ((Count) later).count;
+    }
+
+    @Override
+    Object result() {
+      // TODO : handle null value ?
+      if (value instanceof Float || value instanceof Double) {
+        return count * value.doubleValue();
+      } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+        return intOrLong(count * value.longValue());
+      } else if (value instanceof Long) {
+        return count * value.longValue();
+      }
+      LOG.warn("type of field not handled for sum: {}", value == null ? null : value.getClass());
+      return null;
     }
   }
 
-    /**
+  /**
    * {@see http://docs.mongodb.org/manual/reference/aggregation/avg/#grp._S_avg}
-   *
-   * @param coll  grouped collection to make the avg
-   * @param value field to be averaged.
-   * @return the average of the collection.
    */
-  private static Double avg(DBCollection coll, Object value) {
-    Number result = null;
-    long count = 1;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        LOG.debug("avg object {} ", object);
-
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            count++;
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
-          }
-        }
-      }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
-      return null;
+  static class Avg extends Sum {
+
+    Avg(Expression field) {
+      super(field);
+    }
+
+    @Override
+    Object result() {
+      // Always return double.
+      return count == 0 ? null : doubleValue() / (double) count;
     }
-    // Always return double.
-    return result == null ? null : (result.doubleValue() / (double) count);
   }
 
   /**
-   * Return the first or the last of a collection.
-   *
-   * @param coll collection who contains data.
-   * @param value fieldname for searching.
-   * @return
+   * The first or the last value of the group.
    */
-  private static Object firstlast(DBCollection coll, Object value, boolean first) {
-    LOG.debug("first({})/last({}) on {}", first, !first, value);
-    Object result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        result = Util.extractField(cursor.next(), field);
-        if (first) {
-          break;
-        }
+  static class FirstLast extends Accumulator {
+    private final transient Expression field;
+    private final boolean first;
+    private boolean found;
+    private Object result;
+
+    FirstLast(Expression field, boolean first) {
+      this.field = field;
+      this.first = first;
+    }
+
+    @Override
+    long accumulate(DBObject object) {
+      if (first && found) {
+        return 0;
+      }
+      long before = found ? memorySize(result) : 0;
+      found = true;
+      result = field.value(object);
+      return memorySize(result) - before;
+    }
+
+    @Override
+    void merge(Accumulator later) {
+      FirstLast other = (FirstLast) later;
+      if (other.found && (!first || !found)) {
+        found = true;
+        result = other.result;
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("first({})/last({}) on {}, result : {}", first, !first, value, result);
-    return result;
+    @Override
+    Object result() {
+      return result;
+    }
   }
 
   /**
-   * Return the first or the last of a collection.
-   *
-   * @param coll
-   * @param value fieldname for searching.
-   * @return
+   * The values of the group, or the distinct values of the group.
    */
-  private static BasicDBList pushAddToSet(DBCollection coll, Object value, boolean uniqueness) {
-    LOG.debug("pushAddToSet() on {}", value);
-    BasicDBList result = null;
-    if (value.toString().startsWith("$")) {
-      result = new BasicDBList();
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        Object fieldValue = Util.extractField(cursor.next(), field);
-        if (!uniqueness || !result.contains(fieldValue)) {
+  static class PushAddToSet extends Accumulator {
+    private final transient Expression field;
+    private final BasicDBList result = new BasicDBList();
+    private final Set<Object> distinct;
+
+    PushAddToSet(Expression field, boolean uniqueness) {
+      this.field = field;
+      this.distinct = uniqueness ? new HashSet<Object>() : null;
+    }
+
+    @Override
+    long accumulate(DBObject object) {
+      Object fieldValue = field.value(object);
+      if (distinct != null && !distinct.add(fieldValue)) {
+        return 0;
+      }
+      result.add(fieldValue);
+      return memorySize(fieldValue) + (distinct == null ? 8 : 40);
+    }
+
+    @Override
+    void merge(Accumulator later) {
+      for (Object fieldValue : ((PushAddToSet) later).result) {
+        if (distinct == null || distinct.add(fieldValue)) {
           result.add(fieldValue);
         }
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("pushAddToSet() on {}, result : {}", value, result);
-    return result;
+    @Override
+    Object result() {
+      return result;
+    }
   }
 
   /**
-   * Return the min or the max of a collection.
-   *
-   * @param coll
-   * @param value
-   * @param valueComparable 0 for equals, -1 for min, +1 for max
-   * @return
+   * The min or the max value of the group, in the order of MongoDB. The null values are ignored.
    */
-  private static Object minmax(DBCollection coll, Object value, int valueComparable) {
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      Comparable comparable = null;
-      while (cursor.hasNext()) {
-        DBObject object = cursor.next();
-        if (Util.containsField(object, field)) {
-          if (comparable == null) {
-            comparable = Util.extractField(object, field);
-          } else {
-            Comparable other = Util.extractField(object, field);
-            if (comparable.compareTo(other) == valueComparable) {
-              comparable = other;
-            }
-          }
-        }
+  static class MinMax extends Accumulator {
+    private final transient Expression field;
+    // 1 for min, -1 for max.
+    private final int valueComparable;
+    private Object result;
+
+    MinMax(Expression field, int valueComparable) {
+      this.field = field;
+      this.valueComparable = valueComparable;
+    }
+
+    @Override
+    long accumulate(DBObject object) {
+      Object other = field.value(object);
+      if (other == null) {
+        return 0;
       }
-      return comparable;
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
+      if (result == null) {
+        result = other;
+        return memorySize(other);
+      }
+      if (Integer.signum(compare(result, other)) == valueComparable) {
+        long memory = memorySize(other) - memorySize(result);
+        result = other;
+        return memory;
+      }
+      return 0;
+    }
+
+    @Override
+    void merge(Accumulator later) {
+      Object other = ((MinMax) later).result;
+      if (other != null && (result == null || Integer.signum(compare(result, other)) == valueComparable)) {
+        result = other;
+      }
+    }
+
+    @Override
+    Object result() {
+      return result;
     }
-    return null;
   }
 
   /**
-   * Add two number in the same type.
+   * Compare the numbers and the strings without going through the whole {@link ExpressionParser#compareObjects}.
+   */
+  @SuppressWarnings("unchecked")
+  static int compare(Object value1, Object value2) {
+    Class<?> clazz = value1.getClass();
+    if (clazz == value2.getClass() && (clazz == Integer.class || clazz == Long.class || clazz == Double.class || clazz == String.class)) {
+      return ((Comparable) value1).compareTo(value2);
+    }
+    if (isIntegral(value1) && isIntegral(value2)) {
+      long long1 = ((Number) value1).longValue();
+      long long2 = ((Number) value2).longValue();
+      return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+    }
+    if (value1 instanceof Number && value2 instanceof Number) {
+      return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+    }
+    return EXPRESSION_PARSER.compareObjects(value1, value2);
+  }
+
+  private static boolean isIntegral(Object value) {
+    return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+  }
+
+  /**
+   * return Integer if the parameter could be safely cast to an integer
    *
-   * @param result
-   * @param other
+   * @param number
    * @return
    */
-  private static Number addWithSameType(Number result, Number other) {
-    if (result instanceof Float) {
-      result = Float.valueOf(result.floatValue() + other.floatValue());
-    } else if (result instanceof Double) {
-      result = Double.valueOf(result.doubleValue() + other.doubleValue());
-    } else if (result instanceof Integer) {
-      result = Integer.valueOf(result.intValue() + other.intValue());
-    } else if (result instanceof Long) {
-      result = Long.valueOf(result.longValue() + other.longValue());
+  private static Number intOrLong(long number) {
+    if (number <= Integer.MAX_VALUE && number >= Integer.MIN_VALUE) {
+      return (int) number;
     } else {
-      LOG.warn("type of field not handled for sum : {}", result.getClass());
+      return number;
     }
-    return result;
   }
 
-// --Commented out by Inspection START (05/11/13 12:10):
-//  private static Number returnSameType(Number type, Number other) {
-//    if (type instanceof Float) {
-//      return Float.valueOf(other.floatValue());
-//    } else if (type instanceof Double) {
-//      return Double.valueOf(other.doubleValue());
-//    } else if (type instanceof Integer) {
-//      return Integer.valueOf(other.intValue());
-//    } else if (type instanceof Long) {
-//      return Long.valueOf(other.longValue());
-//    } else {
-//      LOG.warn("type of field not handled for sum : {}", type.getClass());
-//    }
-//    return other;
-//  }
-// --Commented out by Inspection STOP (05/11/13 12:10)
-
   @Override
   public String getKeyword() {
     return "$group";
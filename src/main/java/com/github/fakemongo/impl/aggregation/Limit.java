@@ -1,11 +1,11 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.List;
+import java.util.Iterator;
 
 import org.bson.util.annotations.ThreadSafe;
 
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
 
 /**
  * User: william
@@ -19,14 +19,31 @@ public class Limit extends PipelineKeyword {
   }
 
   /**
+   * The previous stages are not pulled anymore once the limit is reached.
+   *
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().limit(((Number) object.get(getKeyword())).intValue()).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(FongoDBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    final int limit = ((Number) object.get(getKeyword())).intValue();
+    if (limit <= 0) {
+      errorResult(coll, 15958, "exception: the limit must be positive");
+    }
+    return new Stage() {
+      private int count;
+
+      @Override
+      protected DBObject computeNext() {
+        if (count >= limit || !input.hasNext()) {
+          return null;
+        }
+        count++;
+        return input.next();
+      }
+    };
   }
 
   @Override
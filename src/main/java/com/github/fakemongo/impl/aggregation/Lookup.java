@@ -0,0 +1,201 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/lookup/#pipe._S_lookup}
+ * <p/>
+ * Each document gets the documents of the <code>from</code> collection whose <code>foreignField</code> equals its
+ * <code>localField</code>, like <code>find({foreignField: localField})</code>. If <code>foreignField</code> is indexed
+ * and the aggregated collection is the smaller one, they are found through the index for each document. Else the
+ * <code>from</code> collection is read once, into a hash table on <code>foreignField</code>.
+ */
+@ThreadSafe
+public class Lookup extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Lookup.class);
+
+  public static final Lookup INSTANCE = new Lookup();
+
+  private static final List<String> FIELDS = Arrays.asList("from", "localField", "foreignField", "as");
+
+  private Lookup() {
+  }
+
+  @Override
+  public Iterator<DBObject> apply(FongoDBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    Object parameter = object.get(getKeyword());
+    if (!(parameter instanceof DBObject) || parameter instanceof List) {
+      errorResult(coll, 4569, "exception: the $lookup specification must be an Object");
+    }
+    DBObject spec = (DBObject) parameter;
+    Map<String, String> fields = new HashMap<String, String>();
+    for (String key : spec.keySet()) {
+      Object value = spec.get(key);
+      if (!(value instanceof String)) {
+        errorResult(coll, 4570, "exception: arguments to $lookup must be strings, " + key + ": " + value + " is type " + (value == null ? null : value.getClass().getSimpleName()));
+      }
+      fields.put(key, (String) value);
+    }
+    for (String key : fields.keySet()) {
+      if (!FIELDS.contains(key)) {
+        errorResult(coll, 4571, "exception: unknown argument to $lookup: " + key);
+      }
+    }
+    if (fields.size() != FIELDS.size()) {
+      errorResult(coll, 4572, "exception: need to specify fields from, as, localField, and foreignField for a $lookup");
+    }
+
+    FongoDBCollection foreign = (FongoDBCollection) coll.getDB().getCollection(fields.get("from"));
+    final String foreignField = fields.get("foreignField");
+    final Expression local = Expression.compile(coll, "$" + fields.get("localField"));
+    final String as = fields.get("as");
+    HashJoin hashJoin = new HashJoin(foreign, Expression.compile(coll, "$" + foreignField));
+    final Join join;
+    if (foreign.isIndexed(foreignField) && coll.count() < foreign.count()) {
+      LOG.debug("lookup() : index join on {}.{}", foreign.getName(), foreignField);
+      join = new IndexJoin(foreign, foreignField, hashJoin);
+    } else {
+      LOG.debug("lookup() : hash join on {}.{}", foreign.getName(), foreignField);
+      join = hashJoin;
+    }
+    return new Stage() {
+      @Override
+      protected DBObject computeNext() {
+        if (!input.hasNext()) {
+          return null;
+        }
+        DBObject document = input.next();
+        // The input documents can be shared, by the sub-pipelines of a $facet.
+        DBObject joined = as.indexOf('.') < 0 ? new BasicDBObject(document.toMap()) : Util.clone(document);
+        Util.putValue(joined, as, join.find(local.value(document)));
+        return joined;
+      }
+    };
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$lookup";
+  }
+
+  private interface Join {
+    /**
+     * @param value the local field, a list for any of its elements.
+     * @return copies of the foreign documents matching the value.
+     */
+    BasicDBList find(Object value);
+  }
+
+  private static final class IndexJoin implements Join {
+    private final FongoDBCollection foreign;
+    private final String foreignField;
+    // The documents without the field are not in the index : they are found by a scan for a null value.
+    private final HashJoin scan;
+
+    IndexJoin(FongoDBCollection foreign, String foreignField, HashJoin scan) {
+      this.foreign = foreign;
+      this.foreignField = foreignField;
+      this.scan = scan;
+    }
+
+    @Override
+    public BasicDBList find(Object value) {
+      if (value == null || (value instanceof List && ((List) value).contains(null))) {
+        return scan.find(value);
+      }
+      BasicDBList found = new BasicDBList();
+      found.addAll(foreign.findByIndex(foreignField, value));
+      return found;
+    }
+  }
+
+  /**
+   * The foreign documents by value of their field, read when the first document is joined. A document is found by
+   * each element of an array, by null if the field is null or missing.
+   */
+  private static final class HashJoin implements Join {
+    private final FongoDBCollection foreign;
+    private final Expression foreignField;
+    private List<DBObject> documents;
+    // Positions in documents, in the order of the collection.
+    private Map<Group.GroupKey, List<Integer>> positions;
+
+    HashJoin(FongoDBCollection foreign, Expression foreignField) {
+      this.foreign = foreign;
+      this.foreignField = foreignField;
+    }
+
+    @Override
+    public BasicDBList find(Object value) {
+      if (documents == null) {
+        build();
+      }
+      BasicDBList found = new BasicDBList();
+      if (value instanceof List) {
+        Set<Integer> matching = new TreeSet<Integer>();
+        for (Object element : (List) value) {
+          List<Integer> list = positions.get(new Group.GroupKey(element));
+          if (list != null) {
+            matching.addAll(list);
+          }
+        }
+        for (Integer position : matching) {
+          found.add(Util.clone(documents.get(position)));
+        }
+      } else {
+        List<Integer> list = positions.get(new Group.GroupKey(value));
+        if (list != null) {
+          for (Integer position : list) {
+            found.add(Util.clone(documents.get(position)));
+          }
+        }
+      }
+      return found;
+    }
+
+    private void build() {
+      documents = foreign.find().toArray();
+      positions = new HashMap<Group.GroupKey, List<Integer>>();
+      for (int i = 0; i < documents.size(); i++) {
+        Object value = foreignField.value(documents.get(i));
+        if (value instanceof List) {
+          Set<Group.GroupKey> keys = new HashSet<Group.GroupKey>();
+          for (Object element : (List) value) {
+            keys.add(new Group.GroupKey(element));
+          }
+          for (Group.GroupKey key : keys) {
+            add(key, i);
+          }
+        } else {
+          add(new Group.GroupKey(value), i);
+        }
+      }
+      LOG.debug("lookup() : {} documents of {} by {} values", documents.size(), foreign.getName(), positions.size());
+    }
+
+    private void add(Group.GroupKey key, int position) {
+      List<Integer> list = positions.get(key);
+      if (list == null) {
+        list = new ArrayList<Integer>(1);
+        positions.put(key, list);
+      }
+      list.add(position);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/out/#pipe._S_out}
+ * <p/>
+ * Like MongoDB, the documents are inserted in a temporary collection, <code>tmp.agg_out.N</code>, with the indexes of
+ * the target collection : they are built once at the end. The documents of the target are then replaced at once, the
+ * readers never see a part of the result.
+ */
+@ThreadSafe
+public class Out extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Out.class);
+
+  public static final Out INSTANCE = new Out();
+
+  private static final AtomicInteger STAGING = new AtomicInteger();
+
+  private Out() {
+  }
+
+  /**
+   * @return no document : the documents of the previous stage are written when the first one is pulled.
+   */
+  @Override
+  public Iterator<DBObject> apply(final FongoDBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    Object target = object.get(getKeyword());
+    if (!(target instanceof String)) {
+      errorResult(coll, 16990, "exception: $out only supports a string argument, not " + (target == null ? null : target.getClass().getSimpleName()));
+    }
+    final String name = (String) target;
+    if (name.startsWith("system.")) {
+      errorResult(coll, 17385, "exception: Can't $out to special collection: " + name);
+    }
+    return new Stage() {
+      private boolean done;
+
+      @Override
+      protected DBObject computeNext() {
+        if (!done) {
+          done = true;
+          out((FongoDB) coll.getDB(), input, name);
+        }
+        return null;
+      }
+    };
+  }
+
+  private void out(FongoDB fongoDB, Iterator<DBObject> input, String name) {
+    FongoDBCollection target = (FongoDBCollection) fongoDB.getCollection(name);
+    FongoDBCollection staging = (FongoDBCollection) fongoDB.getCollection("tmp.agg_out." + STAGING.incrementAndGet());
+    try {
+      DBCollection indexes = fongoDB.getCollection("system.indexes");
+      for (DBObject index : indexes.find(new BasicDBObject("ns", target.getFullName()))) {
+        if (!"_id_".equals(index.get("name"))) {
+          DBObject options = new BasicDBObject(index.toMap());
+          options.removeField("v");
+          options.removeField("key");
+          options.removeField("ns");
+          staging.createIndex((DBObject) index.get("key"), options);
+        }
+      }
+      int count = staging.bulkInsert(input);
+      LOG.debug("out() : {} documents into {}", count, name);
+      target.replaceDocuments(staging);
+    } finally {
+      staging.drop();
+    }
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$out";
+  }
+
+}
@@ -1,28 +1,55 @@
 package com.github.fakemongo.impl.aggregation;
 
-import com.github.fakemongo.Fongo;
-import com.mongodb.DB;
+import com.github.fakemongo.FongoException;
+import com.github.fakemongo.impl.Util;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: william Date: 24/07/13
  */
 public abstract class PipelineKeyword {
 
-  protected static final DB fongo = new Fongo("aggregation_pipeline").getDB("pipeline");
+  /**
+   * Apply the keyword on the documents of the previous stage.
+   *
+   * @param coll   aggregated collection.
+   * @param input  documents of the previous stage, pulled when needed.
+   * @param object parameters for keyword.
+   * @return the documents of this stage, computed when pulled.
+   */
+  public abstract Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object);
 
+  /**
+   * Apply the keyword, the stages keeping documents in memory can write them to temporary files past
+   * {@link #MAX_MEMORY} if allowed.
+   *
+   * @param allowDiskUse false to fail past {@link #MAX_MEMORY}, like MongoDB.
+   */
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object, boolean allowDiskUse) {
+    return apply(coll, input, object);
+  }
 
   /**
-   * Apply the keyword on the collection
+   * Apply the keyword before the deadline of the aggregation : the stages running sub-pipelines give it to them.
    *
-   * @param coll   collection to be processed (will be destroyed).
-   * @param object parameters for keyword.
-   * @return a new collection in result.
+   * @param deadline the {@link System#nanoTime()} past which the aggregation fails, 0 for none.
    */
-  public abstract DBCollection apply(DBCollection coll, DBObject object);
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object, boolean allowDiskUse, long deadline) {
+    return apply(coll, input, object, allowDiskUse);
+  }
 
   /**
    * Return the keyword in the pipeline (like $sort, $group...).
@@ -31,25 +58,132 @@ public abstract class PipelineKeyword {
    */
   public abstract String getKeyword();
 
+  // Like MongoDB : 100MB for the documents kept by a stage.
+  static final long MAX_MEMORY = 100L * 1024 * 1024;
+
+  // Threads of the executor.
+  static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
   /**
-   * Drop collection and create new one with objects.
-   *
-   * @param coll
-   * @param objects
-   * @return the new collection.
+   * @return the executor shared by the stages working in parallel, with daemon threads.
    */
-  protected DBCollection dropAndInsert(DBCollection coll, List<DBObject> objects) {
-    coll.drop();
-    return createAndInsert(objects);
+  static ExecutorService executor() {
+    return Executor.INSTANCE;
+  }
+
+  /**
+   * @return true in a thread of the executor : its tasks must not wait for other tasks, they could all be waiting.
+   */
+  static boolean inExecutor() {
+    return Thread.currentThread() instanceof ExecutorThread;
+  }
+
+  private static final class Executor {
+    static final ExecutorService INSTANCE = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new ExecutorThread(runnable, "fongo-aggregation-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static final class ExecutorThread extends Thread {
+    ExecutorThread(Runnable runnable, String name) {
+      super(runnable, name);
+    }
   }
 
-  protected DBCollection createAndInsert(List<DBObject> objects) {
-    DBCollection coll = fongo.createCollection(UUID.randomUUID().toString(), null);
-    coll.insert(objects);
-    return coll;
+  /**
+   * Wait for the result of a task of the executor.
+   */
+  static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("interrupted while aggregating", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new FongoException("can't aggregate", e.getCause());
+    }
   }
 
   public boolean canApply(DBObject object) {
     return object.containsField(getKeyword());
   }
-}
\ No newline at end of file
+
+  static void errorResult(DBCollection coll, int code, String err) {
+    ((FongoDB) coll.getDB()).notOkErrorResult(code, err).throwOnError();
+  }
+
+  /**
+   * @return the approximate memory taken by a value, in bytes.
+   */
+  static long memorySize(Object value) {
+    if (value instanceof String) {
+      return 40 + 2 * ((String) value).length();
+    }
+    if (value instanceof byte[]) {
+      return 16 + ((byte[]) value).length;
+    }
+    if (value instanceof List) {
+      long size = 32;
+      for (Object element : (List) value) {
+        size += 8 + memorySize(element);
+      }
+      return size;
+    }
+    if (value instanceof DBObject) {
+      long size = 48;
+      for (Map.Entry<String, Object> entry : Util.entrySet((DBObject) value)) {
+        size += 32 + memorySize(entry.getKey()) + memorySize(entry.getValue());
+      }
+      return size;
+    }
+    return 16;
+  }
+
+  /**
+   * Documents of a stage, computed one by one when pulled.
+   */
+  protected abstract static class Stage implements Iterator<DBObject> {
+    private DBObject next;
+
+    /**
+     * @return the next document, null at the end.
+     */
+    protected abstract DBObject computeNext();
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = computeNext();
+      }
+      return next != null;
+    }
+
+    @Override
+    public DBObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      DBObject document = next;
+      next = null;
+      return document;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
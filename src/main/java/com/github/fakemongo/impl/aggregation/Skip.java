@@ -1,11 +1,11 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.List;
+import java.util.Iterator;
 
 import org.bson.util.annotations.ThreadSafe;
 
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
 
 /**
  * User: william
@@ -20,13 +20,27 @@ public class Skip extends PipelineKeyword {
 
   /**
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().skip(((Number) object.get(getKeyword())).intValue()).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(FongoDBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    final int skip = ((Number) object.get(getKeyword())).intValue();
+    return new Stage() {
+      private boolean skipped;
+
+      @Override
+      protected DBObject computeNext() {
+        if (!skipped) {
+          skipped = true;
+          for (int i = 0; i < skip && input.hasNext(); i++) {
+            input.next();
+          }
+        }
+        return input.hasNext() ? input.next() : null;
+      }
+    };
   }
 
   @Override
@@ -1,11 +1,30 @@
 package com.github.fakemongo.impl.aggregation;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
+import org.bson.io.BasicOutputBuffer;
 import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.github.fakemongo.FongoException;
+import com.github.fakemongo.impl.ExpressionParser;
 import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBEncoder;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.FongoDBCollection;
 
 /**
  * User: william
@@ -13,20 +32,255 @@ import com.mongodb.DBObject;
  */
 @ThreadSafe
 public class Sort extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Sort.class);
+
   public static final Sort INSTANCE = new Sort();
 
   private Sort() {
   }
 
+  @Override
+  public Iterator<DBObject> apply(FongoDBCollection coll, Iterator<DBObject> input, DBObject object) {
+    return apply(coll, input, object, false);
+  }
+
   /**
+   * The documents of the previous stage are all read when the first one is pulled. Past {@link #MAX_MEMORY}, the
+   * documents read are sorted and written to a temporary file : the sorted runs are merged when pulled.
+   *
    * @param coll
+   * @param input
    * @param object
+   * @param allowDiskUse
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().sort((DBObject) object.get(getKeyword())).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(final FongoDBCollection coll, final Iterator<DBObject> input, DBObject object, final boolean allowDiskUse) {
+    final DBObject orderBy = (DBObject) object.get(getKeyword());
+    return new Stage() {
+      private Iterator<DBObject> sorted;
+
+      @Override
+      protected DBObject computeNext() {
+        if (sorted == null) {
+          sorted = sort(coll, input, orderBy, allowDiskUse);
+        }
+        return sorted.hasNext() ? sorted.next() : null;
+      }
+    };
+  }
+
+  private static Iterator<DBObject> sort(FongoDBCollection coll, Iterator<DBObject> input, DBObject orderBy, boolean allowDiskUse) {
+    List<DBObject> objects = new ArrayList<DBObject>();
+    List<SpillFile> runs = new ArrayList<SpillFile>();
+    Comparator<Object> comparator = null;
+    long memory = 0;
+    try {
+      while (input.hasNext()) {
+        DBObject object = input.next();
+        objects.add(object);
+        memory += memorySize(object);
+        if (memory > MAX_MEMORY) {
+          if (!allowDiskUse) {
+            errorResult(coll, 16819, "exception: Sort exceeded memory limit of " + MAX_MEMORY + " bytes, but did not opt in to external sorting. Aborting operation. Pass allowDiskUse:true to opt in.");
+          }
+          if (comparator == null) {
+            comparator = new ExpressionParser().sortSpecificationComparator(orderBy);
+          }
+          runs.add(writeRun(objects, comparator));
+          objects.clear();
+          memory = 0;
+        }
+      }
+    } catch (RuntimeException e) {
+      for (SpillFile run : runs) {
+        run.delete();
+      }
+      throw e;
+    }
+    if (runs.isEmpty()) {
+      return coll.sortObjects(orderBy, objects).iterator();
+    }
+    LOG.debug("sort() : merge of {} runs and {} documents in memory", runs.size(), objects.size());
+    Collections.sort(objects, comparator);
+    List<Iterator<DBObject>> sortedRuns = new ArrayList<Iterator<DBObject>>();
+    for (SpillFile run : runs) {
+      sortedRuns.add(new RunReader(run));
+    }
+    sortedRuns.add(objects.iterator());
+    return new Merge(sortedRuns, comparator);
+  }
+
+  private static SpillFile writeRun(List<DBObject> objects, Comparator<Object> comparator) {
+    Collections.sort(objects, comparator);
+    SpillFile run = new SpillFile();
+    OutputStream output = run.openOutput();
+    try {
+      DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+      for (DBObject object : objects) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        encoder.writeObject(buffer, object);
+        buffer.pipe(output);
+      }
+    } catch (IOException e) {
+      run.delete();
+      throw new FongoException("can't write " + run, e);
+    } finally {
+      SpillFile.close(output);
+    }
+    LOG.debug("sort() : {} documents written in {}", objects.size(), run);
+    return run;
+  }
+
+  /**
+   * The documents of a sorted run, deleted when all read.
+   */
+  private static final class RunReader extends Stage {
+    private final SpillFile run;
+    private final DataInputStream input;
+    private final DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+
+    RunReader(SpillFile run) {
+      this.run = run;
+      this.input = new DataInputStream(run.openInput());
+    }
+
+    @Override
+    protected DBObject computeNext() {
+      try {
+        int first = input.read();
+        if (first < 0) {
+          SpillFile.close(input);
+          run.delete();
+          return null;
+        }
+        byte[] document = new byte[4];
+        document[0] = (byte) first;
+        input.readFully(document, 1, 3);
+        int length = (first & 0xff) | (document[1] & 0xff) << 8 | (document[2] & 0xff) << 16 | (document[3] & 0xff) << 24;
+        document = Arrays.copyOf(document, length);
+        input.readFully(document, 4, length - 4);
+        return decoder.decode(document, (DBCollection) null);
+      } catch (IOException e) {
+        SpillFile.close(input);
+        run.delete();
+        throw new FongoException("can't read " + run, e);
+      }
+    }
+  }
+
+  /**
+   * K-way merge of sorted runs : the first document of each run in a heap. When equal, the document of the first run
+   * is first : the sort is stable.
+   */
+  private static final class Merge extends Stage {
+    private final PriorityQueue<Head> heads;
+
+    Merge(List<Iterator<DBObject>> runs, final Comparator<Object> comparator) {
+      this.heads = new PriorityQueue<Head>(runs.size(), new Comparator<Head>() {
+        @Override
+        public int compare(Head o1, Head o2) {
+          int compare = comparator.compare(o1.object, o2.object);
+          return compare != 0 ? compare : (o1.run < o2.run ? -1 : (o1.run == o2.run ? 0 : 1));
+        }
+      });
+      for (int i = 0; i < runs.size(); i++) {
+        Iterator<DBObject> run = runs.get(i);
+        if (run.hasNext()) {
+          heads.add(new Head(run, i));
+        }
+      }
+    }
+
+    @Override
+    protected DBObject computeNext() {
+      Head head = heads.poll();
+      if (head == null) {
+        return null;
+      }
+      DBObject object = head.object;
+      if (head.documents.hasNext()) {
+        heads.add(new Head(head.documents, head.run));
+      }
+      return object;
+    }
+  }
+
+  private static final class Head {
+    private final Iterator<DBObject> documents;
+    private final int run;
+    private final DBObject object;
+
+    Head(Iterator<DBObject> documents, int run) {
+      this.documents = documents;
+      this.run = run;
+      this.object = documents.next();
+    }
+  }
+
+  /**
+   * Sort followed by a limit : only the first documents are kept while reading the previous stage, in a heap.
+   *
+   * @param coll
+   * @param input
+   * @param object
+   * @param limit  the number of documents to keep.
+   * @return the first documents, sorted.
+   */
+  public Iterator<DBObject> apply(FongoDBCollection coll, final Iterator<DBObject> input, DBObject object, final int limit) {
+    final DBObject orderBy = (DBObject) object.get(getKeyword());
+    if (orderBy.keySet().isEmpty()) {
+      return apply(coll, input, object);
+    }
+    final Comparator<Object> comparator = new ExpressionParser().sortSpecificationComparator(orderBy);
+    return new Stage() {
+      private Iterator<DBObject> sorted;
+
+      @Override
+      protected DBObject computeNext() {
+        if (sorted == null) {
+          sorted = topK(input, comparator, limit).iterator();
+        }
+        return sorted.hasNext() ? sorted.next() : null;
+      }
+    };
+  }
+
+  private static List<DBObject> topK(Iterator<DBObject> input, final Comparator<Object> comparator, int limit) {
+    // The last of the kept documents on top, and the last read when equal : the sort is stable.
+    Comparator<Ranked> reversed = new Comparator<Ranked>() {
+      @Override
+      public int compare(Ranked o1, Ranked o2) {
+        int compare = comparator.compare(o2.object, o1.object);
+        return compare != 0 ? compare : (o2.rank < o1.rank ? -1 : (o2.rank == o1.rank ? 0 : 1));
+      }
+    };
+    PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(Math.min(limit, 1024) + 1, reversed);
+    long rank = 0;
+    while (input.hasNext()) {
+      Ranked ranked = new Ranked(input.next(), rank++);
+      if (heap.size() < limit) {
+        heap.add(ranked);
+      } else if (reversed.compare(ranked, heap.peek()) > 0) {
+        heap.poll();
+        heap.add(ranked);
+      }
+    }
+    DBObject[] sorted = new DBObject[heap.size()];
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      sorted[i] = heap.poll().object;
+    }
+    return Arrays.asList(sorted);
+  }
+
+  private static final class Ranked {
+    private final DBObject object;
+    private final long rank;
+
+    Ranked(DBObject object, long rank) {
+      this.object = object;
+      this.rank = rank;
+    }
   }
 
   @Override
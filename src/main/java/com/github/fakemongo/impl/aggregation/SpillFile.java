@@ -0,0 +1,70 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.FongoException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A temporary file of a stage allowed to use the disk : written once, read back once, then deleted.
+ */
+final class SpillFile {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+
+  SpillFile() {
+    try {
+      this.file = File.createTempFile("fongo-aggregation", ".spill");
+    } catch (IOException e) {
+      throw new FongoException("can't create a temporary file for the aggregation", e);
+    }
+    // If the aggregation is not read until the end.
+    file.deleteOnExit();
+  }
+
+  OutputStream openOutput() {
+    try {
+      return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+    } catch (IOException e) {
+      throw new FongoException("can't write " + file, e);
+    }
+  }
+
+  InputStream openInput() {
+    try {
+      return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    } catch (IOException e) {
+      throw new FongoException("can't read " + file, e);
+    }
+  }
+
+  void delete() {
+    if (file.exists() && !file.delete()) {
+      LOG.warn("can't delete {}", file);
+    }
+  }
+
+  static void close(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOG.warn("can't close a temporary file of the aggregation", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
@@ -1,14 +1,16 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.bson.util.annotations.ThreadSafe;
 import com.github.fakemongo.impl.Util;
 
 import com.mongodb.BasicDBList;
-import com.mongodb.DBCollection;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoException;
 
 /**
@@ -35,35 +37,61 @@ public class Unwind extends PipelineKeyword {
    * </pre>
    *
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    String fieldName = object.get(getKeyword()).toString();
-    if (!fieldName.startsWith("$")) {
+  public Iterator<DBObject> apply(FongoDBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    String name = object.get(getKeyword()).toString();
+    if (!name.startsWith("$")) {
       throw new MongoException(""); // TODO
     }
-    fieldName = fieldName.substring(1);
+    final String fieldName = name.substring(1);
+    final List<String> path = Util.split(fieldName);
 
-    List<DBObject> result = new ArrayList<DBObject>();
-    for (DBObject dbObject : coll.find().toArray()) {
-      if (Util.containsField(dbObject, fieldName)) {
-        Object oValue = Util.extractField(dbObject, fieldName);
-        if (!(oValue instanceof BasicDBList)) {
+    return new Stage() {
+      private DBObject dbObject;
+      private Iterator<?> values = Collections.emptyList().iterator();
+
+      @Override
+      protected DBObject computeNext() {
+        while (!values.hasNext()) {
+          if (!input.hasNext()) {
+            return null;
+          }
+          dbObject = input.next();
+          if (Util.containsField(dbObject, fieldName)) {
+            Object oValue = Util.extractField(dbObject, fieldName);
+            if (!(oValue instanceof List)) {
 //          throw fongoDB..errorResult(15978, "$unwind:  value at end of field path must be an array").getException;
-          throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
-        }
-        BasicDBList list = (BasicDBList) oValue;
-        for (Object sublist : list) {
-          DBObject newValue = Util.clone(dbObject);
-          Util.putValue(newValue, fieldName, sublist);
-          newValue.removeField("_id"); // TODO _id must be the same (but Fongo doesn't handle)
-          result.add(newValue);
+              throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
+            }
+            values = ((List<?>) oValue).iterator();
+          }
         }
+        return overlay(dbObject, path, 0, values.next());
+      }
+    };
+  }
+
+  /**
+   * The document with a value at the path : the other fields are copied, but not the unwound array. The results share
+   * nothing with each other, or with the parent.
+   */
+  private static DBObject overlay(DBObject parent, List<String> path, int index, Object value) {
+    String key = path.get(index);
+    DBObject document = parent instanceof BasicDBList ? new BasicDBList() : new BasicDBObject();
+    for (String field : parent.keySet()) {
+      if (!field.equals(key)) {
+        document.put(field, Util.clone(parent.get(field)));
+      } else if (index == path.size() - 1) {
+        document.put(field, Util.clone(value));
+      } else {
+        document.put(field, overlay((DBObject) parent.get(field), path, index + 1, value));
       }
     }
-    return dropAndInsert(coll, result);
+    return document;
   }
 
   @Override
@@ -6,7 +6,6 @@ import com.github.fakemongo.impl.Util;
 import com.github.fakemongo.impl.geo.LatLong;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.FongoDBCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -38,6 +37,15 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
     //TreeMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(new GeoUtil.GeoComparator(geoIndex)), geoIndex);
   }
 
+  private GeoIndex(GeoIndex source) {
+    super(source);
+  }
+
+  @Override
+  public GeoIndex copy() {
+    return new GeoIndex(this);
+  }
+
   /**
    * Create the key for the hashmap.
    *
@@ -151,7 +159,6 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
       // Test against the query filter.
       if (geoDBObject.getLatLong() != null && filterValue.apply(geoDBObject)) {
         double radians = GeoUtil.distanceInRadians(geoDBObject.getLatLong(), point, spherical);
-        geoDBObject.removeField(FongoDBCollection.FONGO_SPECIAL_ORDER_BY);
         result.add(new BasicDBObject("dis", radians).append("obj", Util.clone(geoDBObject)));
       }
     }
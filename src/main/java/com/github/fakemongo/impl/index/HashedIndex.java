@@ -18,6 +18,15 @@ public class HashedIndex extends IndexAbstract<DBObject> {
     //TreeMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(new GeoUtil.GeoComparator(hashed)), hashed);
   }
 
+  private HashedIndex(HashedIndex source) {
+    super(source);
+  }
+
+  @Override
+  public HashedIndex copy() {
+    return new HashedIndex(this);
+  }
+
   /**
    * Create the key for the hashmap.
    *
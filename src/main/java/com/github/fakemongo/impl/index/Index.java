@@ -21,6 +21,15 @@ public class Index extends IndexAbstract<DBObject> {
     super(name, keys, unique, createMap(keys, unique), null);
   }
 
+  private Index(Index source) {
+    super(source);
+  }
+
+  @Override
+  public Index copy() {
+    return new Index(this);
+  }
+
   private static Map<DBObject, List<DBObject>> createMap(DBObject keys, boolean unique) {
     // Preserve order only for id.
     if (unique && keys.containsField(FongoDBCollection.ID_KEY) && keys.toMap().size() == 1) {
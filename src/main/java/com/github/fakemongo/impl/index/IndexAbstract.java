@@ -9,9 +9,12 @@ import com.mongodb.MongoException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import org.bson.types.Binary;
 
 /**
@@ -46,6 +49,32 @@ public abstract class IndexAbstract<T extends DBObject> {
     }
   }
 
+  /**
+   * Copy of an index : the indexed objects are shared, not the maps and lists.
+   */
+  IndexAbstract(IndexAbstract<T> source) {
+    this.name = source.name;
+    this.fields = source.fields;
+    this.keys = source.keys;
+    this.unique = source.unique;
+    this.geoIndex = source.geoIndex;
+    this.lookupCount = source.lookupCount;
+    // Copy a TreeMap from a SortedMap is linear.
+    this.mapValues = source.mapValues instanceof SortedMap
+        ? new TreeMap<T, List<T>>((SortedMap<T, List<T>>) source.mapValues)
+        : new LinkedHashMap<T, List<T>>(source.mapValues);
+    if (!unique) {
+      for (Map.Entry<T, List<T>> entry : mapValues.entrySet()) {
+        entry.setValue(new ArrayList<T>(entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * @return an index with the same entries, which can be modified independently of this one.
+   */
+  public abstract IndexAbstract<T> copy();
+
   private DBObject prepareKeys(DBObject keys) {
     DBObject nKeys = Util.clone(keys);
     if (!nKeys.containsField(FongoDBCollection.ID_KEY)) {
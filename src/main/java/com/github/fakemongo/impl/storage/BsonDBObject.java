@@ -0,0 +1,21 @@
+package com.github.fakemongo.impl.storage;
+
+import org.bson.LazyBSONCallback;
+
+/**
+ * A document of a {@link BsonDocumentStore} : only the byte[] stays in memory.
+ */
+class BsonDBObject extends EncodedDBObject {
+
+  private final byte[] data;
+
+  BsonDBObject(byte[] data, LazyBSONCallback callback) {
+    super(callback);
+    this.data = data;
+  }
+
+  @Override
+  byte[] data() {
+    return data;
+  }
+}
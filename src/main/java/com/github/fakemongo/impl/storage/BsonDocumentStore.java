@@ -0,0 +1,113 @@
+package com.github.fakemongo.impl.storage;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBList;
+import com.mongodb.LazyDBObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Keep each document encoded in BSON, like MongoDB does : a document costs its BSON size instead of a graph of maps.
+ * <p/>
+ * Fields are decoded on each read into new {@link BasicDBObject}/{@link BasicDBList} : nothing is shared between two
+ * reads. Like in MongoDB, java types without BSON equivalent are converted (Float to Double, Character to String...).
+ */
+public class BsonDocumentStore implements DocumentStore {
+
+  private final DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+  final DecodingCallback callback;
+
+  public BsonDocumentStore(DBCollection collection) {
+    this.callback = new DecodingCallback(collection);
+  }
+
+  byte[] encode(DBObject document) {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    encoder.writeObject(buffer, document);
+    return buffer.toByteArray();
+  }
+
+  @Override
+  public List<DBObject> load() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public DBObject store(DBObject document) {
+    return new BsonDBObject(encode(document), callback);
+  }
+
+  @Override
+  public DBObject store(byte[] bson, int offset, int length) {
+    return new BsonDBObject(Arrays.copyOfRange(bson, offset, offset + length), callback);
+  }
+
+  @Override
+  public void release(DBObject stored) {
+  }
+
+  @Override
+  public void clear() {
+  }
+
+  @Override
+  public void compact() {
+  }
+
+  @Override
+  public void commit() {
+  }
+
+  @Override
+  public void sync() {
+  }
+
+  /**
+   * Decode embedded documents and arrays entirely, as heap objects.
+   */
+  static class DecodingCallback extends LazyDBCallback {
+
+    private final DB db;
+
+    DecodingCallback(DBCollection collection) {
+      super(collection);
+      this.db = collection.getDB();
+    }
+
+    @Override
+    public Object createObject(byte[] data, int offset) {
+      BasicDBObject decoded = new BasicDBObject();
+      for (Map.Entry<String, Object> entry : new LazyDBObject(data, offset, this).entrySet()) {
+        decoded.put(entry.getKey(), entry.getValue());
+      }
+      // Same detection than the driver : $ref must be the first key.
+      Iterator<String> keys = decoded.keySet().iterator();
+      if (keys.hasNext() && keys.next().equals("$ref") && decoded.containsField("$id")) {
+        return new DBRef(db, decoded);
+      }
+      return decoded;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List createArray(byte[] data, int offset) {
+      BasicDBList decoded = new BasicDBList();
+      for (Object value : new LazyDBList(data, offset, this)) {
+        decoded.add(value);
+      }
+      return decoded;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.github.fakemongo.impl.storage;
+
+import com.mongodb.DBObject;
+import java.util.List;
+
+/**
+ * Hold the documents of a collection.
+ * <p/>
+ * The object returned by {@link #store(DBObject)} is the one referenced by the indexes : it is never modified
+ * afterwards and must not be given to the user.
+ * <p/>
+ * NOT Thread Safe. The ThreadSafety must be done by the caller.
+ */
+public interface DocumentStore {
+
+  /**
+   * @return the stored objects kept from a previous run, to put in the indexes.
+   */
+  List<DBObject> load();
+
+  /**
+   * @param document a document not shared with the caller, _id in first place.
+   * @return the object to reference from the indexes.
+   */
+  DBObject store(DBObject document);
+
+  /**
+   * @param bson   a document encoded in BSON, _id in first place : the bytes are not kept.
+   * @param offset position of the document in bson.
+   * @param length length of the document.
+   * @return the object to reference from the indexes.
+   */
+  DBObject store(byte[] bson, int offset, int length);
+
+  /**
+   * The stored object isn't referenced by the indexes anymore.
+   *
+   * @param stored an object returned by {@link #store(DBObject)}.
+   */
+  void release(DBObject stored);
+
+  /**
+   * All the stored objects are released.
+   */
+  void clear();
+
+  /**
+   * Give back the space left by released objects, if the store doesn't do it by itself.
+   */
+  void compact();
+
+  /**
+   * End of a write : the changes made since the previous commit are found back together after a crash, or not at all.
+   */
+  void commit();
+
+  /**
+   * Wait until the committed changes are on disk, if the store is durable.
+   */
+  void sync();
+}
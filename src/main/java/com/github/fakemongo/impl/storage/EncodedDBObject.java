@@ -0,0 +1,107 @@
+package com.github.fakemongo.impl.storage;
+
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBObject;
+import com.mongodb.util.JSON;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+import org.bson.LazyBSONCallback;
+
+/**
+ * A stored document, kept in BSON : fields are decoded at each read.
+ * <p/>
+ * Stored documents are read only : writes throw an {@link UnsupportedOperationException}, so that nothing ever turns
+ * them back into heap objects.
+ * <p/>
+ * equals() and hashCode() are the ones of Object : indexes must find back this instance, whatever its content.
+ */
+abstract class EncodedDBObject implements DBObject {
+
+  private final LazyBSONCallback callback;
+
+  EncodedDBObject(LazyBSONCallback callback) {
+    this.callback = callback;
+  }
+
+  /**
+   * @return the BSON of the document, must not be modified.
+   */
+  abstract byte[] data();
+
+  private DBObject read() {
+    return new LazyDBObject(data(), callback);
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("stored documents are read only");
+  }
+
+  @Override
+  public Object put(String key, Object v) {
+    throw readOnly();
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    throw readOnly();
+  }
+
+  @Override
+  public void putAll(Map m) {
+    throw readOnly();
+  }
+
+  @Override
+  public Object removeField(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public void markAsPartialObject() {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean isPartialObject() {
+    return false;
+  }
+
+  @Override
+  public Object get(String key) {
+    return read().get(key);
+  }
+
+  @Override
+  @Deprecated
+  public boolean containsKey(String s) {
+    return containsField(s);
+  }
+
+  @Override
+  public boolean containsField(String s) {
+    return read().containsField(s);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return read().keySet();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map toMap() {
+    // LazyBSONObject.toMap() is not supported.
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> entry : new LazyDBObject(data(), callback).entrySet()) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return JSON.serialize(this);
+  }
+}
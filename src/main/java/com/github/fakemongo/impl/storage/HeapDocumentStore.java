@@ -0,0 +1,66 @@
+package com.github.fakemongo.impl.storage;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keep the documents as they are given.
+ */
+public class HeapDocumentStore implements DocumentStore {
+
+  private final DBCollection collection;
+  private DBDecoder decoder;
+
+  public HeapDocumentStore(DBCollection collection) {
+    this.collection = collection;
+  }
+
+  @Override
+  public List<DBObject> load() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public DBObject store(DBObject document) {
+    return document;
+  }
+
+  @Override
+  public DBObject store(byte[] bson, int offset, int length) {
+    if (decoder == null) {
+      decoder = DefaultDBDecoder.FACTORY.create();
+    }
+    try {
+      return decoder.decode(new ByteArrayInputStream(bson, offset, length), collection);
+    } catch (IOException e) {
+      throw new FongoException("can't decode document", e);
+    }
+  }
+
+  @Override
+  public void release(DBObject stored) {
+  }
+
+  @Override
+  public void clear() {
+  }
+
+  @Override
+  public void compact() {
+  }
+
+  @Override
+  public void commit() {
+  }
+
+  @Override
+  public void sync() {
+  }
+}
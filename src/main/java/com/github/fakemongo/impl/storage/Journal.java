@@ -0,0 +1,381 @@
+package com.github.fakemongo.impl.storage;
+
+import com.github.fakemongo.FongoException;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of the {@link JournaledDocumentStore}s of a directory, like the journal of MongoDB : each write
+ * of a store (insert, update, remove...) is appended as one entry listing the bytes written in its files.
+ * <p/>
+ * Entries are buffered, then written and forced on disk together every commit interval by a flusher thread (group
+ * commit). A writer waiting in {@link #sync()} makes the flush happen at once.
+ * <p/>
+ * An entry is : the length and the CRC32 of its body, then the body (the name of the store and its records). The
+ * records are written in the files of the stores only once the entry is on disk. When the journal is opened, its
+ * entries are replayed on the files, up to an entry partially written by a crash. A checkpoint forces the files on
+ * disk, then truncates the journal.
+ */
+public class Journal {
+  private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+  public static final String FILE_NAME = "fongo.journal";
+
+  public static final long DEFAULT_COMMIT_INTERVAL = 100;
+
+  // Like the syncdelay of MongoDB.
+  static final long CHECKPOINT_INTERVAL = 60 * 1000;
+  static final long CHECKPOINT_SIZE = 64 * 1024 * 1024;
+
+  // Records of an entry.
+  static final byte CREATE = 1;
+  static final byte WRITE = 2;
+  static final byte DELETE = 3;
+
+  private final File directory;
+  private final long commitInterval;
+  // Also locks the writes in the file, and in the files of the stores.
+  private final RandomAccessFile file;
+  // Files of the stores written since the last checkpoint.
+  private final Map<File, RandomAccessFile> files = new HashMap<File, RandomAccessFile>();
+  // Writes of the stores share the read lock, checkpoints take the write lock : they only see whole writes.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Thread flusher;
+
+  // Entries appended but not written yet.
+  private byte[] buffer = new byte[64 * 1024];
+  private int count;
+  private byte[] spare = new byte[64 * 1024];
+  // Bytes appended and bytes on disk since the opening.
+  private long appended;
+  private long flushed;
+  private volatile long fileLength;
+  private volatile long lastCheckpoint;
+  private boolean urgent;
+  private boolean closed;
+  private IOException failure;
+
+  /**
+   * Replay the existing journal of the directory, then start the flusher thread.
+   *
+   * @param directory      root directory of the stores.
+   * @param commitInterval max time in milliseconds between two flushes of the journal.
+   */
+  public Journal(File directory, long commitInterval) {
+    this.directory = directory;
+    this.commitInterval = commitInterval;
+    File journalFile = new File(directory, FILE_NAME);
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new FongoException("can't create directory " + directory);
+      }
+      if (journalFile.exists()) {
+        replay(journalFile);
+      }
+      this.file = new RandomAccessFile(journalFile, "rw");
+      this.file.setLength(0);
+    } catch (IOException e) {
+      throw new FongoException("can't open journal " + journalFile, e);
+    }
+    this.lastCheckpoint = System.currentTimeMillis();
+    this.flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "fongo-journal " + directory);
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * A store starts a write.
+   */
+  void begin() {
+    lock.readLock().lock();
+  }
+
+  /**
+   * A store ends a write.
+   */
+  void end() {
+    lock.readLock().unlock();
+  }
+
+  /**
+   * @param body   name of the store then its records.
+   * @param length length of the body.
+   */
+  void append(byte[] body, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, length);
+    synchronized (this) {
+      if (closed) {
+        throw new FongoException("journal closed in " + directory);
+      }
+      if (count + 8 + length > buffer.length) {
+        byte[] bigger = new byte[Math.max(buffer.length * 2, count + 8 + length)];
+        System.arraycopy(buffer, 0, bigger, 0, count);
+        buffer = bigger;
+      }
+      ByteBuffer.wrap(buffer, count, 8).putInt(length).putInt((int) crc.getValue());
+      System.arraycopy(body, 0, buffer, count + 8, length);
+      count += 8 + length;
+      appended += 8 + length;
+    }
+  }
+
+  /**
+   * Wait until the appended entries are on disk.
+   */
+  public synchronized void sync() {
+    if (closed) {
+      throw new FongoException("journal closed in " + directory);
+    }
+    long target = appended;
+    urgent = true;
+    notifyAll();
+    try {
+      while (flushed < target && failure == null && !closed) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("interrupted while waiting for the journal");
+    }
+    if (failure != null) {
+      throw new FongoException("can't write journal in " + directory, failure);
+    }
+    if (flushed < target) {
+      throw new FongoException("journal closed in " + directory);
+    }
+  }
+
+  /**
+   * Write the appended entries, force the files of the stores on disk, then truncate the journal.
+   */
+  public void checkpoint() {
+    try {
+      doCheckpoint();
+    } catch (IOException e) {
+      throw new FongoException("can't checkpoint journal in " + directory, e);
+    }
+  }
+
+  /**
+   * Checkpoint, then stop the flusher thread.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+    }
+    checkpoint();
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+      synchronized (file) {
+        file.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new FongoException("can't close journal in " + directory, e);
+    }
+  }
+
+  private void flushLoop() {
+    try {
+      while (true) {
+        synchronized (this) {
+          if (!urgent && !closed) {
+            wait(commitInterval);
+          }
+          if (closed) {
+            return;
+          }
+        }
+        flush();
+        if (fileLength >= CHECKPOINT_SIZE || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+          doCheckpoint();
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.warn("journal flusher interrupted");
+    } catch (IOException e) {
+      LOG.error("can't write journal in " + directory, e);
+      synchronized (this) {
+        failure = e;
+        notifyAll();
+      }
+    }
+  }
+
+  private void doCheckpoint() throws IOException {
+    lock.writeLock().lock();
+    try {
+      synchronized (file) {
+        flush();
+        for (RandomAccessFile randomAccessFile : files.values()) {
+          randomAccessFile.getFD().sync();
+          randomAccessFile.close();
+        }
+        files.clear();
+        file.setLength(0);
+        fileLength = 0;
+        lastCheckpoint = System.currentTimeMillis();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void flush() throws IOException {
+    synchronized (file) {
+      byte[] data;
+      int length;
+      long target;
+      synchronized (this) {
+        urgent = false;
+        if (count == 0) {
+          return;
+        }
+        data = buffer;
+        length = count;
+        target = appended;
+        buffer = spare;
+        count = 0;
+      }
+      file.write(data, 0, length);
+      file.getChannel().force(false);
+      fileLength += length;
+      // Write-ahead : the files are written once the entries are on disk.
+      ByteBuffer entries = ByteBuffer.wrap(data, 0, length);
+      while (entries.hasRemaining()) {
+        int entryLength = entries.getInt();
+        entries.getInt();
+        apply(ByteBuffer.wrap(data, entries.position(), entryLength).slice(), files);
+        entries.position(entries.position() + entryLength);
+      }
+      spare = data;
+      synchronized (this) {
+        flushed = target;
+        notifyAll();
+      }
+    }
+  }
+
+  private void replay(File journalFile) throws IOException {
+    Map<File, RandomAccessFile> files = new HashMap<File, RandomAccessFile>();
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+    int entries = 0;
+    try {
+      long remaining = journalFile.length();
+      while (remaining >= 8) {
+        int length = input.readInt();
+        int crc = input.readInt();
+        if (length < 0 || length > remaining - 8) {
+          break;
+        }
+        byte[] body = new byte[length];
+        input.readFully(body);
+        CRC32 expected = new CRC32();
+        expected.update(body);
+        if ((int) expected.getValue() != crc) {
+          break;
+        }
+        apply(ByteBuffer.wrap(body), files);
+        remaining -= 8 + length;
+        entries++;
+      }
+    } catch (EOFException e) {
+      // Entry partially written.
+    } finally {
+      input.close();
+      for (RandomAccessFile randomAccessFile : files.values()) {
+        randomAccessFile.getFD().sync();
+        randomAccessFile.close();
+      }
+    }
+    LOG.info("{} entries of journal replayed in {}", entries, directory);
+  }
+
+  private void apply(ByteBuffer body, Map<File, RandomAccessFile> files) throws IOException {
+    byte[] nameBytes = new byte[body.getShort()];
+    body.get(nameBytes);
+    String name = new String(nameBytes, "UTF-8");
+    while (body.hasRemaining()) {
+      byte type = body.get();
+      switch (type) {
+        case CREATE: {
+          File slabFile = slabFile(name, body.getInt());
+          close(files, slabFile);
+          if (slabFile.exists() && !slabFile.delete()) {
+            throw new IOException("can't delete old file " + slabFile);
+          }
+          open(files, slabFile).setLength(body.getInt());
+          break;
+        }
+        case WRITE: {
+          RandomAccessFile randomAccessFile = open(files, slabFile(name, body.getInt()));
+          randomAccessFile.seek(body.getInt());
+          int length = body.getInt();
+          randomAccessFile.write(body.array(), body.arrayOffset() + body.position(), length);
+          body.position(body.position() + length);
+          break;
+        }
+        case DELETE:
+          for (int index = 0; slabFile(name, index).exists(); index++) {
+            close(files, slabFile(name, index));
+            if (!slabFile(name, index).delete()) {
+              throw new IOException("can't delete file " + slabFile(name, index));
+            }
+          }
+          break;
+        default:
+          throw new IOException("unknown record " + type + " in journal of " + directory);
+      }
+    }
+  }
+
+  private File slabFile(String name, int index) {
+    return new File(directory, name + "." + index);
+  }
+
+  private static RandomAccessFile open(Map<File, RandomAccessFile> files, File slabFile) throws IOException {
+    RandomAccessFile randomAccessFile = files.get(slabFile);
+    if (randomAccessFile == null) {
+      File parent = slabFile.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("can't create directory " + parent);
+      }
+      randomAccessFile = new RandomAccessFile(slabFile, "rw");
+      files.put(slabFile, randomAccessFile);
+    }
+    return randomAccessFile;
+  }
+
+  private static void close(Map<File, RandomAccessFile> files, File slabFile) throws IOException {
+    RandomAccessFile randomAccessFile = files.remove(slabFile);
+    if (randomAccessFile != null) {
+      randomAccessFile.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.github.fakemongo.impl.storage;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A {@link MappedDocumentStore} writing in a {@link Journal} the bytes it writes in its slabs : the files are found back
+ * after a crash, even if the system didn't write them on disk.
+ * <p/>
+ * The records of a write are kept until {@link #commit()}, then appended to the journal as one entry. The store never
+ * writes its files : they are mapped privately (copy on write), the journal writes the records in the files once they
+ * are on disk in the journal (write-ahead). Past a quarter of a file of writes, the store waits for the journal, then
+ * maps its files again : the pages it copied are given back.
+ */
+public class JournaledDocumentStore extends MappedDocumentStore {
+
+  // Bigger buffers of records are not kept for the next writes.
+  private static final int MAX_KEPT_RECORDS = 1024 * 1024;
+
+  private final Journal journal;
+  private final byte[] name;
+  // Bytes written in the private pages before mapping the files again.
+  private final int remapSize;
+  private ByteBuffer records = ByteBuffer.allocate(1024);
+  private boolean writing;
+  private long written;
+
+  public JournaledDocumentStore(DBCollection collection, File directory, int fileSize, Journal journal) {
+    super(collection, directory, fileSize);
+    this.journal = journal;
+    this.remapSize = Math.max(fileSize / 4, 1);
+    try {
+      this.name = (directory.getName() + "/" + fileName(collection.getName())).getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new FongoException("UTF-8 not supported", e);
+    }
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    reserve(1).put(Journal.DELETE);
+  }
+
+  @Override
+  protected void deleteFiles() {
+    // Done by the journal, with the DELETE record.
+  }
+
+  @Override
+  protected ByteBuffer map(File file, long size) {
+    return map(file, size, FileChannel.MapMode.PRIVATE);
+  }
+
+  @Override
+  public void commit() {
+    if (writing) {
+      try {
+        journal.append(records.array(), records.position());
+      } finally {
+        writing = false;
+        journal.end();
+        if (records.capacity() > MAX_KEPT_RECORDS) {
+          records = ByteBuffer.allocate(1024);
+        }
+      }
+      if (written >= remapSize) {
+        remap();
+      }
+    }
+  }
+
+  @Override
+  public void sync() {
+    journal.sync();
+  }
+
+  @Override
+  protected List<DBObject> open(List<ByteBuffer> existing) {
+    written = 0;
+    return super.open(existing);
+  }
+
+  @Override
+  protected ByteBuffer newSlab(int index, int capacity) {
+    // A sparse file, of 0 : the end of the slab. The journal creates it again with the CREATE record.
+    ByteBuffer slab = super.newSlab(index, capacity);
+    reserve(9).put(Journal.CREATE).putInt(index).putInt(capacity);
+    return slab;
+  }
+
+  @Override
+  protected void written(int slab, int position, int length) {
+    ByteBuffer bytes = slabs().get(slab).duplicate();
+    bytes.limit(position + length).position(position);
+    reserve(13 + length).put(Journal.WRITE).putInt(slab).putInt(position).putInt(length).put(bytes);
+    written += length;
+  }
+
+  /**
+   * Wait for the records to be written in the files, then map them again.
+   */
+  private void remap() {
+    journal.sync();
+    List<ByteBuffer> slabs = slabs();
+    for (int index = 0; index < slabs.size(); index++) {
+      replaceSlab(index, map(slabFile(index), slabs.get(index).capacity()));
+    }
+    written = 0;
+  }
+
+  /**
+   * @return the records, with room for length more bytes.
+   */
+  private ByteBuffer reserve(int length) {
+    if (!writing) {
+      journal.begin();
+      writing = true;
+      records.clear();
+      records.putShort((short) name.length).put(name);
+    }
+    if (records.remaining() < length) {
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + length));
+      records.flip();
+      records = bigger.put(records);
+    }
+    return records;
+  }
+}
@@ -0,0 +1,166 @@
+package com.github.fakemongo.impl.storage;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keep the documents of a collection in memory mapped files, one file per slab : <code>collection.0</code>,
+ * <code>collection.1</code>... in the directory of the database, like the data files of MongoDB.
+ * <p/>
+ * The documents are found back when the collection is opened again : only their location is read, they are decoded
+ * when used.
+ */
+public class MappedDocumentStore extends OffHeapDocumentStore {
+
+  public static final int DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+
+  private final File directory;
+  private final String fileName;
+
+  public MappedDocumentStore(DBCollection collection, File directory, int fileSize) {
+    super(collection, fileSize);
+    this.directory = directory;
+    this.fileName = fileName(collection.getName());
+  }
+
+  @Override
+  public List<DBObject> load() {
+    List<ByteBuffer> existing = new ArrayList<ByteBuffer>();
+    for (int index = 0; slabFile(index).exists(); index++) {
+      existing.add(map(slabFile(index), slabFile(index).length()));
+    }
+    return open(existing);
+  }
+
+  @Override
+  protected ByteBuffer newSlab(int index, int capacity) {
+    File file = slabFile(index);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new FongoException("can't create directory " + directory);
+    }
+    if (file.exists() && !file.delete()) {
+      throw new FongoException("can't delete old file " + file);
+    }
+    return map(file, capacity);
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    deleteFiles();
+  }
+
+  /**
+   * Delete the files of the collection, on {@link #clear()}.
+   */
+  protected void deleteFiles() {
+    for (int index = 0; slabFile(index).exists(); index++) {
+      if (!slabFile(index).delete()) {
+        throw new FongoException("can't delete file " + slabFile(index));
+      }
+    }
+  }
+
+  /**
+   * @param file file of a slab, extended to the size if needed.
+   * @param size size of the slab.
+   * @return the slab, the writes in it are written in the file.
+   */
+  protected ByteBuffer map(File file, long size) {
+    return map(file, size, FileChannel.MapMode.READ_WRITE);
+  }
+
+  /**
+   * Write the slabs on disk.
+   */
+  public void force() {
+    for (ByteBuffer slab : slabs()) {
+      ((MappedByteBuffer) slab).force();
+    }
+  }
+
+  protected File slabFile(int index) {
+    return new File(directory, fileName + "." + index);
+  }
+
+  static ByteBuffer map(File file, long size, FileChannel.MapMode mode) {
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(size);
+        // The mapping stays valid once the file is closed.
+        return randomAccessFile.getChannel().map(mode, 0, size);
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch (IOException e) {
+      throw new FongoException("can't map file " + file, e);
+    }
+  }
+
+  /**
+   * @param directory root directory of a mapped Fongo.
+   * @return names of the databases having a directory.
+   */
+  public static List<String> databaseNames(File directory) {
+    List<String> names = new ArrayList<String>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          names.add(name(file.getName()));
+        }
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @param directory directory of a database.
+   * @return names of the collections having a first file.
+   */
+  public static List<String> collectionNames(File directory) {
+    List<String> names = new ArrayList<String>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(".0")) {
+          names.add(name(file.getName().substring(0, file.getName().length() - 2)));
+        }
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @param name name of a database or a collection.
+   * @return a name usable for a file.
+   */
+  public static String fileName(String name) {
+    try {
+      return URLEncoder.encode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new FongoException("UTF-8 not supported", e);
+    }
+  }
+
+  private static String name(String fileName) {
+    try {
+      return URLDecoder.decode(fileName, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new FongoException("UTF-8 not supported", e);
+    }
+  }
+}
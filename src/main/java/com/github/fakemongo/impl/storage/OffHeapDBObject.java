@@ -0,0 +1,22 @@
+package com.github.fakemongo.impl.storage;
+
+/**
+ * A document of an {@link OffHeapDocumentStore} : only the record id stays on the heap.
+ */
+class OffHeapDBObject extends EncodedDBObject {
+
+  private final OffHeapDocumentStore store;
+  // -1 once released.
+  int recordId;
+
+  OffHeapDBObject(OffHeapDocumentStore store, int recordId) {
+    super(store.callback);
+    this.store = store;
+    this.recordId = recordId;
+  }
+
+  @Override
+  byte[] data() {
+    return store.read(recordId);
+  }
+}
@@ -0,0 +1,331 @@
+package com.github.fakemongo.impl.storage;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keep each document encoded in BSON, out of the java heap : documents are written in direct {@link ByteBuffer}s
+ * ("slabs"), only a handle with the record id of the document stays on the heap. Big datasets don't make GC pauses
+ * longer.
+ * <p/>
+ * <code>offsets[recordId]</code> gives the slab and the position of a document, <code>sizes[recordId]</code> the size
+ * of the segment allocated for it. Segments freed by updates and removes are reused by next writes, and the slabs are
+ * compacted when more space is lost than used.
+ * <p/>
+ * A slab is a list of segments : an int header (the segment size, negative if the segment is free) then the BSON of
+ * the document. A 0 header ends the slab, so the documents can be found back by {@link #open(List)}.
+ * <p/>
+ * NOT Thread Safe. The ThreadSafety must be done by the caller.
+ */
+public class OffHeapDocumentStore extends BsonDocumentStore {
+
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  private static final int HEADER_SIZE = 4;
+  // Smaller remainders of a free segment are given with the segment.
+  private static final int MIN_SEGMENT_SIZE = 32;
+
+  private final int slabSize;
+  private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  // Write position : slab and position in this slab.
+  private int current;
+  private int tail;
+
+  private long[] offsets;
+  private int[] sizes;
+  private int nextId;
+  private int[] freeIds;
+  private int freeIdCount;
+
+  // Free locations by segment size.
+  private final TreeMap<Integer, List<Long>> freeSegments = new TreeMap<Integer, List<Long>>();
+  // Bytes of live documents.
+  private long usedBytes;
+  // Bytes before the write position not used by a live document.
+  private long lostBytes;
+
+  public OffHeapDocumentStore(DBCollection collection, int slabSize) {
+    super(collection);
+    this.slabSize = slabSize;
+    reset();
+  }
+
+  @Override
+  public DBObject store(DBObject document) {
+    byte[] data = encode(document);
+    return store(data, 0, data.length);
+  }
+
+  @Override
+  public DBObject store(byte[] bson, int offset, int length) {
+    int recordId = newRecordId();
+    write(recordId, bson, offset, length);
+    return new OffHeapDBObject(this, recordId);
+  }
+
+  @Override
+  public void release(DBObject stored) {
+    OffHeapDBObject handle = (OffHeapDBObject) stored;
+    int recordId = handle.recordId;
+    addFreeSegment(offsets[recordId], sizes[recordId]);
+    usedBytes -= sizes[recordId];
+    offsets[recordId] = -1L;
+    if (freeIdCount == freeIds.length) {
+      freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+    }
+    freeIds[freeIdCount++] = recordId;
+    handle.recordId = -1;
+
+    if (lostBytes > slabSize && lostBytes > usedBytes) {
+      compact();
+    }
+  }
+
+  @Override
+  public void clear() {
+    reset();
+  }
+
+  /**
+   * Move all the documents to the start of the slabs, in place.
+   */
+  @Override
+  public void compact() {
+    List<Integer> recordIds = new ArrayList<Integer>();
+    for (int recordId = 0; recordId < nextId; recordId++) {
+      if (offsets[recordId] >= 0) {
+        recordIds.add(recordId);
+      }
+    }
+    // Documents only move backward : sort them by location.
+    Collections.sort(recordIds, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer id1, Integer id2) {
+        long location1 = offsets[id1];
+        long location2 = offsets[id2];
+        return location1 < location2 ? -1 : (location1 == location2 ? 0 : 1);
+      }
+    });
+
+    current = 0;
+    tail = 0;
+    freeSegments.clear();
+    usedBytes = 0;
+    lostBytes = 0;
+    for (int recordId : recordIds) {
+      byte[] data = read(recordId);
+      int size = HEADER_SIZE + data.length;
+      long location = append(size);
+      segment(location).putInt(size).put(data);
+      written(location, size);
+      offsets[recordId] = location;
+      sizes[recordId] = size;
+      usedBytes += size;
+    }
+    // Old segments after the write position must not be found again.
+    endSlab(current, tail);
+    for (int slab = current + 1; slab < slabs.size(); slab++) {
+      endSlab(slab, 0);
+    }
+  }
+
+  /**
+   * Find back the documents of existing slabs.
+   *
+   * @param existing slabs written by a previous store.
+   * @return the stored documents.
+   */
+  protected List<DBObject> open(List<ByteBuffer> existing) {
+    reset();
+    List<DBObject> stored = new ArrayList<DBObject>();
+    for (ByteBuffer slab : existing) {
+      slabs.add(slab.order(ByteOrder.LITTLE_ENDIAN));
+      int position = 0;
+      while (position + HEADER_SIZE <= slab.capacity() && slab.getInt(position) != 0) {
+        int size = slab.getInt(position);
+        long location = location(slabs.size() - 1, position);
+        if (size > 0) {
+          int recordId = newRecordId();
+          offsets[recordId] = location;
+          sizes[recordId] = size;
+          usedBytes += size;
+          stored.add(new OffHeapDBObject(this, recordId));
+        } else {
+          registerFreeSegment(location, -size);
+        }
+        position += Math.abs(size);
+      }
+      if (position > 0) {
+        // Space lost at the end of the previous slabs.
+        lostBytes += tail == 0 ? 0 : slabs.get(current).capacity() - tail;
+        current = slabs.size() - 1;
+        tail = position;
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * @param index    index of the slab in the store.
+   * @param capacity size of the slab.
+   * @return a new slab, filled with 0.
+   */
+  protected ByteBuffer newSlab(int index, int capacity) {
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * @return the slabs of the store, by index.
+   */
+  protected List<ByteBuffer> slabs() {
+    return Collections.unmodifiableList(slabs);
+  }
+
+  /**
+   * @param index index of the slab in the store.
+   * @param slab  a slab with the same content.
+   */
+  protected void replaceSlab(int index, ByteBuffer slab) {
+    slabs.set(index, slab.order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Called after each write in a slab.
+   *
+   * @param slab     index of the slab.
+   * @param position position of the written bytes in the slab.
+   * @param length   number of written bytes.
+   */
+  protected void written(int slab, int position, int length) {
+  }
+
+  byte[] read(int recordId) {
+    if (recordId < 0) {
+      throw new IllegalStateException("document has been released");
+    }
+    ByteBuffer segment = segment(offsets[recordId]);
+    segment.position(segment.position() + HEADER_SIZE);
+    byte[] data = new byte[segment.getInt(segment.position())];
+    segment.get(data);
+    return data;
+  }
+
+  private void reset() {
+    slabs.clear();
+    current = 0;
+    tail = 0;
+    offsets = new long[64];
+    sizes = new int[64];
+    nextId = 0;
+    freeIds = new int[16];
+    freeIdCount = 0;
+    freeSegments.clear();
+    usedBytes = 0;
+    lostBytes = 0;
+  }
+
+  private int newRecordId() {
+    if (freeIdCount > 0) {
+      return freeIds[--freeIdCount];
+    }
+    if (nextId == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      sizes = Arrays.copyOf(sizes, sizes.length * 2);
+    }
+    return nextId++;
+  }
+
+  private void write(int recordId, byte[] data, int offset, int length) {
+    int size = HEADER_SIZE + length;
+    Map.Entry<Integer, List<Long>> free = freeSegments.ceilingEntry(size);
+    long location;
+    int segmentSize = size;
+    if (free != null) {
+      List<Long> locations = free.getValue();
+      location = locations.remove(locations.size() - 1);
+      if (locations.isEmpty()) {
+        freeSegments.remove(free.getKey());
+      }
+      lostBytes -= free.getKey();
+      if (free.getKey() - size >= MIN_SEGMENT_SIZE) {
+        addFreeSegment(location + size, free.getKey() - size);
+      } else {
+        segmentSize = free.getKey();
+      }
+    } else {
+      location = append(size);
+      endSlab(current, tail);
+    }
+    segment(location).putInt(segmentSize).put(data, offset, length);
+    written(location, HEADER_SIZE + length);
+    offsets[recordId] = location;
+    sizes[recordId] = segmentSize;
+    usedBytes += segmentSize;
+  }
+
+  /**
+   * Reserve size bytes at the write position, in the next slab if needed.
+   */
+  private long append(int size) {
+    while (current < slabs.size() && slabs.get(current).capacity() - tail < size) {
+      lostBytes += slabs.get(current).capacity() - tail;
+      current++;
+      tail = 0;
+    }
+    if (current == slabs.size()) {
+      slabs.add(newSlab(current, Math.max(slabSize, size)).order(ByteOrder.LITTLE_ENDIAN));
+    }
+    long location = location(current, tail);
+    tail += size;
+    return location;
+  }
+
+  private void endSlab(int slab, int position) {
+    if (slab < slabs.size() && position + HEADER_SIZE <= slabs.get(slab).capacity()) {
+      slabs.get(slab).putInt(position, 0);
+      written(slab, position, HEADER_SIZE);
+    }
+  }
+
+  private void addFreeSegment(long location, int size) {
+    registerFreeSegment(location, size);
+    segment(location).putInt(-size);
+    written(location, HEADER_SIZE);
+  }
+
+  private void registerFreeSegment(long location, int size) {
+    List<Long> locations = freeSegments.get(size);
+    if (locations == null) {
+      locations = new ArrayList<Long>();
+      freeSegments.put(size, locations);
+    }
+    locations.add(location);
+    lostBytes += size;
+  }
+
+  private void written(long location, int length) {
+    written((int) (location >>> 32), (int) location, length);
+  }
+
+  private static long location(int slab, int position) {
+    return ((long) slab << 32) | position;
+  }
+
+  /**
+   * @return a buffer positioned on the location, BSON is little endian.
+   */
+  private ByteBuffer segment(long location) {
+    ByteBuffer segment = slabs.get((int) (location >>> 32)).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    segment.position((int) location);
+    return segment;
+  }
+}
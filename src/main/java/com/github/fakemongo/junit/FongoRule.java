@@ -1,20 +1,25 @@
 package com.github.fakemongo.junit;
 
 import com.github.fakemongo.Fongo;
+import com.github.fakemongo.impl.JsonStream;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
 import com.mongodb.util.JSON;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.UnknownHostException;
 import java.util.List;
 import java.util.UUID;
 import org.junit.rules.ExternalResource;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
 /**
  * Create a Junit Rule to use with annotation
@@ -28,6 +33,21 @@ import org.junit.rules.ExternalResource;
  * <p><b>
  * WARNING : database is dropped after the test !!
  * </b></P>
+ * <p>
+ * With {@link #baseline()}, the same rule can be used as a class rule and as a rule : the data inserted by
+ * {@link #before()} once for the class is the baseline, the writes of each test are rolled back after it.
+ * </p>
+ * <pre>
+ * &#64;ClassRule
+ * public static FongoRule FONGO = new FongoRule() {
+ *   protected void before() throws UnknownHostException {
+ *     super.before();
+ *     insertFile(newCollection("fixture"), "/fixture.json");
+ *   }
+ * }.baseline();
+ * &#64;Rule
+ * public FongoRule fongoRule = FONGO;
+ * </pre>
  */
 public class FongoRule extends ExternalResource {
 
@@ -44,6 +64,11 @@ public class FongoRule extends ExternalResource {
 
   private DB db;
 
+  private boolean baseline;
+
+  // Set up by the outermost apply, when in baseline mode.
+  private boolean started;
+
   /**
    * Setup a rule with a real MongoDB.
    *
@@ -78,6 +103,48 @@ public class FongoRule extends ExternalResource {
     this(dbName, false, null);
   }
 
+  /**
+   * Roll back the writes of each test to the data inserted by {@link #before()}, instead of dropping the database.
+   * Only with fongo : a real MongoDB can't be rolled back.
+   *
+   * @return this rule.
+   */
+  public FongoRule baseline() {
+    if (realMongo) {
+      throw new IllegalStateException("baseline needs fongo, not a real MongoDB");
+    }
+    this.baseline = true;
+    return this;
+  }
+
+  @Override
+  public Statement apply(final Statement base, final Description description) {
+    if (!baseline) {
+      return super.apply(base, description);
+    }
+    return new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        boolean outermost = !started;
+        if (outermost) {
+          before();
+          fongo.mark();
+          started = true;
+        }
+        try {
+          base.evaluate();
+        } finally {
+          if (outermost) {
+            started = false;
+            after();
+          } else {
+            fongo.rollback();
+          }
+        }
+      }
+    };
+  }
+
   @Override
   protected void before() throws UnknownHostException {
     if (realMongo) {
@@ -95,23 +162,21 @@ public class FongoRule extends ExternalResource {
     db.dropDatabase();
   }
 
+  /**
+   * Insert the documents of a JSON text : an array, or documents one after the other.
+   */
   public DBCollection insertJSON(DBCollection coll, String json) {
-    List<DBObject> objects = parseList(json);
-    for (DBObject object : objects) {
-      coll.insert(object);
-    }
+    insert(coll, new StringReader(json));
     return coll;
   }
 
+  /**
+   * Insert the documents of a JSON resource, like the files of <code>mongoexport</code> : one by line, or an array.
+   */
   public DBCollection insertFile(DBCollection coll, String filename) throws IOException {
     InputStream is = this.getClass().getResourceAsStream(filename);
     try {
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
-      String line = br.readLine();
-      while (line != null) {
-        coll.insert(this.parseDBObject(line));
-        line = br.readLine();
-      }
+      insert(coll, new InputStreamReader(is, "UTF-8"));
     } finally {
       if (is != null) {
         is.close();
@@ -120,6 +185,20 @@ public class FongoRule extends ExternalResource {
     return coll;
   }
 
+  /**
+   * Fongo streams the documents into the collection, its indexes filled once at the end.
+   */
+  private void insert(DBCollection coll, Reader reader) {
+    JsonStream documents = new JsonStream(reader);
+    if (coll instanceof FongoDBCollection) {
+      ((FongoDBCollection) coll).bulkInsert(documents);
+    } else {
+      while (documents.hasNext()) {
+        coll.insert(documents.next());
+      }
+    }
+  }
+
   public List<DBObject> parseList(String json) {
     return parse(json);
   }
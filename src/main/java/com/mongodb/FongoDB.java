@@ -1,6 +1,8 @@
 package com.mongodb;
 
+import com.github.fakemongo.AggregationCache;
 import com.github.fakemongo.Fongo;
+import com.github.fakemongo.StorageEngine;
 import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.MapReduce;
 import java.util.ArrayList;
@@ -23,6 +25,8 @@ public class FongoDB extends DB {
   private final static Logger LOG = LoggerFactory.getLogger(FongoDB.class);
 
   private final Map<String, FongoDBCollection> collMap = Collections.synchronizedMap(new HashMap<String, FongoDBCollection>());
+  // Collections at the mark, see {@link #mark()}.
+  private Map<String, FongoDBCollection> marked = Collections.emptyMap();
   private final Fongo fongo;
 
   private MongoCredential mongoCredential;
@@ -32,6 +36,25 @@ public class FongoDB extends DB {
     this.fongo = fongo;
     doGetCollection("system.users");
     doGetCollection("system.indexes");
+    for (String collectionName : fongo.getStorageEngine().collectionNames(name)) {
+      doGetCollection(collectionName);
+    }
+  }
+
+  /**
+   * Fork of a database, see {@link Fongo#fork()}.
+   *
+   * @param fongo  the fork.
+   * @param parent the database to fork.
+   */
+  public FongoDB(Fongo fongo, FongoDB parent) {
+    super(fongo.getMongo(), parent.getName());
+    this.fongo = fongo;
+    synchronized (parent.collMap) {
+      for (FongoDBCollection collection : parent.collMap.values()) {
+        collMap.put(collection.getName(), new FongoDBCollection(this, collection));
+      }
+    }
   }
 
   @Override
@@ -64,9 +87,9 @@ public class FongoDB extends DB {
     return coll.findAndModify(query, fields, sort, remove, update, returnNew, upsert);
   }
 
-  private List<DBObject> doAggregateCollection(String collection, List<DBObject> pipeline) {
+  private List<DBObject> doAggregateCollection(String collection, List<DBObject> pipeline, Number maxTimeMS, boolean allowDiskUse) {
     FongoDBCollection coll = doGetCollection(collection);
-    Aggregator aggregator = new Aggregator(this, coll, pipeline);
+    Aggregator aggregator = new Aggregator(this, coll, pipeline, maxTimeMS == null ? 0L : maxTimeMS.longValue(), allowDiskUse);
 
     return aggregator.computeResult();
   }
@@ -107,6 +130,14 @@ public class FongoDB extends DB {
     return fongo.getWriteConcern();
   }
 
+  StorageEngine getStorageEngine() {
+    return fongo.getStorageEngine();
+  }
+
+  public AggregationCache getAggregationCache() {
+    return fongo.getAggregationCache();
+  }
+
   @Override
   public ReadPreference getReadPreference() {
     return ReadPreference.primaryPreferred();
@@ -179,7 +210,7 @@ public class FongoDB extends DB {
       CommandResult okResult = okResult();
       return okResult;
     } else if (cmd.containsField("aggregate")) {
-      @SuppressWarnings("unchecked") List<DBObject> result = doAggregateCollection((String) cmd.get("aggregate"), (List<DBObject>) cmd.get("pipeline"));
+      @SuppressWarnings("unchecked") List<DBObject> result = doAggregateCollection((String) cmd.get("aggregate"), (List<DBObject>) cmd.get("pipeline"), (Number) cmd.get("maxTimeMS"), Boolean.TRUE.equals(cmd.get("allowDiskUse")));
       if (result == null) {
         return notOkErrorResult("can't aggregate");
       }
@@ -192,6 +223,9 @@ public class FongoDB extends DB {
       return runFindAndModify(cmd, "findAndModify");
     } else if (cmd.containsField("findandmodify")) {
       return runFindAndModify(cmd, "findandmodify");
+    } else if (cmd.containsField("compact")) {
+      doGetCollection((String) cmd.get("compact")).compact();
+      return okResult();
     } else if (cmd.containsField("ping")) {
       CommandResult okResult = okResult();
       return okResult;
@@ -271,6 +305,10 @@ public class FongoDB extends DB {
     return notOkErrorResult(null, "no such cmd: " + command);
   }
 
+  public ServerAddress getServerAddress() {
+    return fongo.getServerAddress();
+  }
+
   public CommandResult okResult() {
     CommandResult result = new CommandResult(fongo.getServerAddress());
     result.put("ok", 1.0);
@@ -317,6 +355,41 @@ public class FongoDB extends DB {
     return "FongoDB." + this.getName();
   }
 
+  /**
+   * See {@link com.github.fakemongo.Fongo#mark()}.
+   */
+  public void mark() {
+    synchronized (collMap) {
+      marked = new HashMap<String, FongoDBCollection>(collMap);
+      for (FongoDBCollection collection : marked.values()) {
+        collection.mark();
+      }
+    }
+  }
+
+  /**
+   * See {@link com.github.fakemongo.Fongo#rollback()}.
+   */
+  public void rollback() {
+    synchronized (collMap) {
+      // The collections created since the mark are dropped, system ones last : dropping the others writes in them.
+      for (boolean system : new boolean[]{false, true}) {
+        for (FongoDBCollection collection : new ArrayList<FongoDBCollection>(collMap.values())) {
+          if (collection.getName().startsWith("system") == system && marked.get(collection.getName()) != collection) {
+            collection.drop();
+          }
+        }
+      }
+      collMap.putAll(marked);
+      for (FongoDBCollection collection : marked.values()) {
+        collection.rollback();
+      }
+      for (FongoDBCollection collection : marked.values()) {
+        collection.syncIndexes();
+      }
+    }
+  }
+
   public void removeCollection(FongoDBCollection collection) {
     collMap.remove(collection.getName());
   }
@@ -1,6 +1,7 @@
 package com.mongodb;
 
 import com.github.fakemongo.FongoException;
+import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Filter;
 import com.github.fakemongo.impl.Tuple2;
@@ -11,20 +12,27 @@ import com.github.fakemongo.impl.geo.LatLong;
 import com.github.fakemongo.impl.index.GeoIndex;
 import com.github.fakemongo.impl.index.IndexAbstract;
 import com.github.fakemongo.impl.index.IndexFactory;
+import com.github.fakemongo.impl.storage.DocumentStore;
 import com.github.fakemongo.impl.text.TextSearch;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.bson.BSON;
 import org.bson.io.BasicOutputBuffer;
 import org.bson.io.OutputBuffer;
@@ -46,9 +54,9 @@ public class FongoDBCollection extends DBCollection {
 
   public static final String ID_KEY = "_id";
 
-  public static final String FONGO_SPECIAL_ORDER_BY = "$$$$$FONGO_ORDER_BY$$$$$";
-
   private static final String ID_NAME_INDEX = "_id_";
+  // Documents inserted by bulkInsert between two commits of the store.
+  private static final int BULK_COMMIT = 1000;
   private final FongoDB fongoDb;
   private final ExpressionParser expressionParser;
   private final UpdateEngine updateEngine;
@@ -56,22 +64,170 @@ public class FongoDBCollection extends DBCollection {
   private final ExpressionParser.ObjectComparator objectComparator;
   // Fields/Index
   private final List<IndexAbstract> indexes = new ArrayList<IndexAbstract>();
-  private final IndexAbstract _idIndex;
+  private IndexAbstract _idIndex;
+  private final DocumentStore store;
+  // Indexes shared with a fork (or its parent) : they must be copied before the first write.
+  private boolean shared;
+  // Writes since the mark of the Fongo, the oldest first : null if not marked.
+  private List<Undo> undoLog;
+  // Ids of the documents in natural order before the first write since the mark : null if none.
+  private List<Object> markOrder;
+  // Incremented by each write of the documents, see getVersion().
+  private long version;
+  // Positions of the stored documents in natural order, for the version naturalVersion : see findByIndex().
+  private Map<DBObject, Integer> naturalPositions;
+  private long naturalVersion;
 
   public FongoDBCollection(FongoDB db, String name) {
     super(db, name);
     this.fongoDb = db;
+    this.store = db.getStorageEngine().createStore(this);
     this.nonIdCollection = name.startsWith("system");
     this.expressionParser = new ExpressionParser();
     this.updateEngine = new UpdateEngine();
     this.objectComparator = expressionParser.buildObjectComparator(true);
     this._idIndex = IndexFactory.create(ID_KEY, new BasicDBObject(ID_KEY, 1), true);
     this.indexes.add(_idIndex);
+    this._idIndex.addAll(store.load());
     if (!this.nonIdCollection) {
       this.createIndex(new BasicDBObject(ID_KEY, 1), new BasicDBObject("name", ID_NAME_INDEX));
+      this.syncIndexes();
+    }
+  }
+
+  /**
+   * Fork of a collection : the indexes, and so the documents, are shared with the parent until the first write of one
+   * of them. The reads of both can run concurrently, they never write a stored document.
+   */
+  FongoDBCollection(FongoDB db, FongoDBCollection parent) {
+    super(db, parent.getName());
+    this.fongoDb = db;
+    this.store = db.getStorageEngine().createStore(this);
+    this.nonIdCollection = parent.nonIdCollection;
+    this.expressionParser = new ExpressionParser();
+    this.updateEngine = new UpdateEngine();
+    this.objectComparator = expressionParser.buildObjectComparator(true);
+    synchronized (parent) {
+      this._idIndex = parent._idIndex;
+      this.indexes.addAll(parent.indexes);
+      this.shared = true;
+      parent.shared = true;
+    }
+  }
+
+  /**
+   * Make the indexes match the ones declared in system.indexes (by a previous run, before a drop command, or before a
+   * rollback).
+   */
+  synchronized void syncIndexes() {
+    if (nonIdCollection) {
+      return;
+    }
+    Set<String> declared = new HashSet<String>();
+    DBCollection indexColl = fongoDb.getCollection("system.indexes");
+    for (DBObject rec : indexColl.find(new BasicDBObject("ns", getFullName()))) {
+      String name = (String) rec.get("name");
+      declared.add(name);
+      if (!ID_NAME_INDEX.equals(name) && findIndex(name) == null) {
+        IndexAbstract index = IndexFactory.create(name, (DBObject) rec.get("key"), isUnique(rec));
+        index.addAll(_idIndex.values());
+        indexes.add(index);
+      }
+    }
+    Iterator<IndexAbstract> iterator = indexes.iterator();
+    while (iterator.hasNext()) {
+      IndexAbstract index = iterator.next();
+      if (index != _idIndex && !declared.contains(index.getName())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private IndexAbstract findIndex(String name) {
+    for (IndexAbstract index : indexes) {
+      if (index.getName().equals(name)) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Log the writes from now on, to undo them with {@link #rollback()}.
+   */
+  synchronized void mark() {
+    undoLog = new ArrayList<Undo>();
+    markOrder = null;
+  }
+
+  /**
+   * Undo the writes since the mark, the newest first, then put the documents back in their natural order. The
+   * collection stays marked.
+   */
+  @SuppressWarnings("unchecked")
+  synchronized void rollback() {
+    List<Undo> log = undoLog;
+    if (log == null) {
+      return;
+    }
+    undoLog = null;
+    try {
+      for (int i = log.size() - 1; i >= 0; i--) {
+        Undo undo = log.get(i);
+        List<DBObject> current = _idIndex.get(new BasicDBObject(ID_KEY, undo.id));
+        if (current != null && !current.isEmpty()) {
+          removeFromIndexes(current.get(0));
+        }
+        if (undo.before != null) {
+          addToIndexes(undo.before, null, WriteConcern.ACKNOWLEDGED);
+        }
+      }
+      if (markOrder != null) {
+        List<DBObject> ordered = new ArrayList<DBObject>(markOrder.size());
+        for (Object id : markOrder) {
+          List<DBObject> objects = _idIndex.get(new BasicDBObject(ID_KEY, id));
+          if (objects != null && !objects.isEmpty()) {
+            ordered.add(objects.get(0));
+          }
+        }
+        version++;
+        _idIndex.clear();
+        for (DBObject object : ordered) {
+          _idIndex.addOrUpdate(object, null);
+        }
+      }
+    } finally {
+      undoLog = new ArrayList<Undo>();
+      markOrder = null;
+    }
+  }
+
+  /**
+   * @return a number changed by each write of the documents : the results computed from them are still valid while it
+   * doesn't change.
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void logUndo(Object id, DBObject before) {
+    if (undoLog != null) {
+      if (markOrder == null) {
+        markOrder = new ArrayList<Object>(_idIndex.size());
+        for (DBObject object : (List<DBObject>) _idIndex.values()) {
+          markOrder.add(object.get(ID_KEY));
+        }
+      }
+      // The stored object can be released by the store : keep a copy.
+      undoLog.add(new Undo(id, before == null ? null : Util.clone(before)));
     }
   }
 
+  private static boolean isUnique(DBObject options) {
+    return options != null && options.get("unique") != null && (Boolean.TRUE.equals(options.get("unique")) || "1".equals(options.get("unique")) || Integer.valueOf(1).equals(options.get("unique")));
+  }
+
   private CommandResult insertResult(int updateCount) {
     CommandResult result = fongoDb.okResult();
     result.put("n", updateCount);
@@ -117,14 +273,175 @@ public class FongoDBCollection extends DBCollection {
 
       putSizeCheck(cloned, concern);
     }
+    awaitDurable(concern);
     return new WriteResult(insertResult(toInsert.size()), concern);
   }
 
+  /**
+   * Insert documents not shared with the caller (from a snapshot, a file...) : they are not copied. In an empty
+   * collection, the indexes other than _id are filled once at the end, and the collection is left empty if a
+   * document can't be inserted.
+   *
+   * @param documents documents not shared with the caller.
+   * @return number of inserted documents.
+   */
+  public synchronized int bulkInsert(Iterator<DBObject> documents) {
+    return bulkInsert(documents, false);
+  }
+
+  /**
+   * Like {@link #bulkInsert(Iterator)}, with documents encoded in BSON (from a mongodump file...) : the stores keeping
+   * BSON copy them without decoding.
+   *
+   * @param documents each one holds a document between its position and its limit, read before the next one.
+   * @return number of inserted documents.
+   */
+  public synchronized int bulkInsertBson(Iterator<ByteBuffer> documents) {
+    return bulkInsert(documents, true);
+  }
+
+  private int bulkInsert(Iterator<?> documents, boolean encoded) {
+    this.fongoDb.addCollection(this);
+    ownIndexes();
+    int count = 0;
+    if (_idIndex.size() > 0) {
+      while (documents.hasNext()) {
+        Object next = documents.next();
+        DBObject object = encoded ? decode((ByteBuffer) next) : (DBObject) next;
+        putIdIfNotPresent(object);
+        addToIndexes(object, null, WriteConcern.ACKNOWLEDGED);
+        count++;
+      }
+      return count;
+    }
+    List<DBObject> added = new ArrayList<DBObject>();
+    boolean done = false;
+    version++;
+    try {
+      while (documents.hasNext()) {
+        Object next = documents.next();
+        DBObject stored = encoded ? storeBson((ByteBuffer) next) : storeDocument((DBObject) next);
+        added.add(stored);
+        checkUnique(_idIndex, _idIndex.addOrUpdate(stored, null));
+        logUndo(stored.get(ID_KEY), null);
+        if (++count % BULK_COMMIT == 0) {
+          store.commit();
+        }
+      }
+      for (IndexAbstract index : indexes) {
+        if (index != _idIndex) {
+          checkUnique(index, index.addAll(added));
+        }
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        for (IndexAbstract index : indexes) {
+          index.clear();
+        }
+        store.clear();
+      }
+      store.commit();
+    }
+    return count;
+  }
+
+  /**
+   * Replace the documents by the ones of another collection having the same indexes (see $out) : the readers see
+   * either the old documents or the new ones. The indexes are kept, and filled once at the end. On failure, the old
+   * documents are put back, like MongoDB.
+   *
+   * @param staging the collection holding the new documents, dropped after.
+   */
+  @SuppressWarnings("unchecked")
+  public void replaceDocuments(FongoDBCollection staging) {
+    final Iterator<DBObject> documents;
+    synchronized (staging) {
+      documents = staging._idIndex.values().iterator();
+    }
+    synchronized (this) {
+      ownIndexes();
+      // The stored documents are released by the store : keep copies.
+      List<DBObject> old = new ArrayList<DBObject>(_idIndex.size());
+      for (DBObject object : (List<DBObject>) _idIndex.values()) {
+        logUndo(object.get(ID_KEY), object);
+        old.add(Util.clone(object));
+      }
+      for (IndexAbstract index : indexes) {
+        index.clear();
+      }
+      store.clear();
+      try {
+        // The stored documents of the staging collection are released with its store.
+        bulkInsert(new Iterator<DBObject>() {
+          @Override
+          public boolean hasNext() {
+            return documents.hasNext();
+          }
+
+          @Override
+          public DBObject next() {
+            return Util.clone(documents.next());
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        }, false);
+      } catch (RuntimeException e) {
+        // bulkInsert cleared what it inserted.
+        bulkInsert(old.iterator(), false);
+        throw e;
+      }
+    }
+  }
+
+  private DBObject storeDocument(DBObject object) {
+    putIdIfNotPresent(object);
+    return store.store(Util.idFirst(object));
+  }
+
+  private DBObject storeBson(ByteBuffer bson) {
+    byte[] data = bson.array();
+    int offset = bson.arrayOffset() + bson.position();
+    // Type of the first element, then "_id" : MongoDB puts it first.
+    if (bson.remaining() > 9 && data[offset + 4] != 0 && data[offset + 5] == '_' && data[offset + 6] == 'i'
+        && data[offset + 7] == 'd' && data[offset + 8] == 0) {
+      return store.store(data, offset, bson.remaining());
+    }
+    return storeDocument(decode(bson));
+  }
+
+  private DBObject decode(ByteBuffer bson) {
+    try {
+      return DefaultDBDecoder.FACTORY.create().decode(new ByteArrayInputStream(bson.array(), bson.arrayOffset() + bson.position(), bson.remaining()), this);
+    } catch (IOException e) {
+      throw new FongoException("can't decode document", e);
+    }
+  }
+
+  private void checkUnique(IndexAbstract index, List<List<Object>> notUnique) {
+    if (!notUnique.isEmpty()) {
+      fongoDb.errorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + index.getName() + "  dup key: { : " + notUnique + " }").throwOnError();
+    }
+  }
+
   boolean enforceDuplicates(WriteConcern concern) {
     WriteConcern writeConcern = concern == null ? getWriteConcern() : concern;
     return writeConcern._w instanceof Number && ((Number) writeConcern._w).intValue() > 0;
   }
 
+  /**
+   * Like MongoDB, wait for the journal if the write concern asks for it.
+   */
+  private void awaitDurable(WriteConcern concern) {
+    WriteConcern writeConcern = concern == null ? getWriteConcern() : concern;
+    if (writeConcern.getJ() || writeConcern.getFsync()) {
+      store.sync();
+    }
+  }
+
   public ObjectId putIdIfNotPresent(DBObject obj) {
     Object object = obj.get(ID_KEY);
     if (object == null) {
@@ -153,12 +470,12 @@ public class FongoDBCollection extends DBCollection {
     if (dbo == null) {
       return null;
     }
-    dbo = Util.clone(dbo);
+    // replaceListAndMap rebuild every sub object : no need to deep clone before.
+    DBObject filtered = dbo instanceof List ? new BasicDBList() : new BasicDBObject();
     for (Map.Entry<String, Object> entry : Util.entrySet(dbo)) {
-      Object replacementValue = replaceListAndMap(entry.getValue());
-      dbo.put(entry.getKey(), replacementValue);
+      filtered.put(entry.getKey(), replaceListAndMap(entry.getValue()));
     }
-    return dbo;
+    return filtered;
   }
 
   public Object replaceListAndMap(Object value) {
@@ -185,7 +502,7 @@ public class FongoDBCollection extends DBCollection {
       }
       replacementValue = newDbo;
     } else if (replacementValue instanceof Binary) {
-      replacementValue = ((Binary) replacementValue).getData();
+      replacementValue = ((Binary) replacementValue).getData().clone();
     }
     return replacementValue;
   }
@@ -224,7 +541,7 @@ public class FongoDBCollection extends DBCollection {
         o.put(ID_KEY, Util.clone(o.get(ID_KEY)));
       }
       @SuppressWarnings("unchecked") Iterator<DBObject> oldObjects = _idIndex.retrieveObjects(q).iterator();
-      addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
+      addToIndexes(o, oldObjects.hasNext() ? oldObjects.next() : null, concern);
       updatedDocuments++;
     } else {
       Filter filter = expressionParser.buildFilter(q);
@@ -251,6 +568,7 @@ public class FongoDBCollection extends DBCollection {
         updatedExisting = false;
       }
     }
+    awaitDurable(concern);
     return new WriteResult(updateResult(updatedDocuments, updatedExisting), concern);
   }
 
@@ -338,6 +656,7 @@ public class FongoDBCollection extends DBCollection {
       removeFromIndexes(object);
       updatedDocuments++;
     }
+    awaitDurable(concern);
     return new WriteResult(updateResult(updatedDocuments, false), concern);
   }
 
@@ -379,12 +698,18 @@ public class FongoDBCollection extends DBCollection {
     }
 
     // Unique index must not be in previous find.
-    boolean unique = options != null && options.get("unique") != null && (Boolean.TRUE.equals(options.get("unique")) || "1".equals(options.get("unique")) || Integer.valueOf(1).equals(options.get("unique")));
+    boolean unique = isUnique(options);
     if (unique) {
       rec.append("unique", unique);
     }
     rec.putAll(options);
 
+    if (ID_NAME_INDEX.equals(rec.get("name"))) {
+      // _idIndex already does the job : don't keep every key twice.
+      indexColl.insert(rec);
+      return;
+    }
+
     try {
       IndexAbstract index = IndexFactory.create((String) rec.get("name"), keys, unique);
       @SuppressWarnings("unchecked") List<List<Object>> notUnique = index.addAll(_idIndex.values());
@@ -471,33 +796,17 @@ public class FongoDBCollection extends DBCollection {
       }
     }
     int seen = 0;
-    Iterable<DBObject> objectsToSearch = sortObjects(orderby, objectsFromIndex);
+    Iterable<DBObject> objectsToSearch = sortObjects(orderby, filter, objectsFromIndex);
     for (Iterator<DBObject> iter = objectsToSearch.iterator(); iter.hasNext() && foundCount <= upperLimit && maxScan-- > 0; ) {
       DBObject dbo = iter.next();
       if (filter.apply(dbo)) {
         if (seen++ >= numToSkip) {
           foundCount++;
-          DBObject clonedDbo = Util.clone(dbo);
-          if (nonIdCollection) {
-            clonedDbo.removeField(ID_KEY);
-          }
-          clonedDbo.removeField(FONGO_SPECIAL_ORDER_BY);
-          for (String key : clonedDbo.keySet()) {
-            Object value = clonedDbo.get(key);
-            if (value instanceof DBRef && ((DBRef) value).getDB() == null) {
-              clonedDbo.put(key, new DBRef(this.getDB(), ((DBRef) value).getRef(), ((DBRef) value).getId()));
-            }
-          }
-          results.add(clonedDbo);
+          results.add(copyForResult(dbo, fields));
         }
       }
     }
 
-    if (fields != null && !fields.keySet().isEmpty()) {
-      LOG.debug("applying projections {}", fields);
-      results = applyProjections(results, fields);
-    }
-
     LOG.debug("found results {}", results);
 
     return replaceWithObjectClass(results).iterator();
@@ -527,17 +836,32 @@ public class FongoDBCollection extends DBCollection {
     return dbObjectIterable;
   }
 
-  private List<DBObject> applyProjections(List<DBObject> results, DBObject projection) {
-    final List<DBObject> ret = new ArrayList<DBObject>(results.size());
-
-    for (DBObject result : results) {
-      DBObject projectionMacthedResult = applyProjections(result, projection);
-      if (null != projectionMacthedResult) {
-        ret.add(projectionMacthedResult);
+  /**
+   * Create the copy of a stored object given to the caller.
+   * With a projection, only the projected fields are copied, the stored object is never cloned as a whole.
+   *
+   * @param dbo    stored object, must not be modified.
+   * @param fields projection, can be null.
+   * @return a private copy of dbo.
+   */
+  private DBObject copyForResult(DBObject dbo, DBObject fields) {
+    final DBObject result;
+    if (fields != null && !fields.keySet().isEmpty()) {
+      LOG.debug("applying projections {}", fields);
+      result = applyProjections(dbo, fields);
+    } else {
+      result = Util.clone(dbo);
+    }
+    if (nonIdCollection) {
+      result.removeField(ID_KEY);
+    }
+    for (String key : result.keySet()) {
+      Object value = result.get(key);
+      if (value instanceof DBRef && ((DBRef) value).getDB() == null) {
+        result.put(key, new DBRef(this.getDB(), ((DBRef) value).getRef(), ((DBRef) value).getId()));
       }
     }
-
-    return ret;
+    return result;
   }
 
 
@@ -573,7 +897,7 @@ public class FongoDBCollection extends DBCollection {
         }
       }
     } else if (value != null) {
-      ret.append(subKey, value);
+      ret.append(subKey, Util.clone(value));
     }
   }
 
@@ -637,6 +961,7 @@ public class FongoDBCollection extends DBCollection {
 
   /**
    * Applies the requested <a href="http://docs.mongodb.org/manual/core/read-operations/#result-projections">projections</a> to the given object.
+   * The returned object doesn't share any value with the given object.
    * TODO: Support for projection operators: http://docs.mongodb.org/manual/reference/operator/projection/
    */
   public static DBObject applyProjections(DBObject result, DBObject projectionObject) {
@@ -756,7 +1081,7 @@ public class FongoDBCollection extends DBCollection {
           }
           if (pos != -1) {
             BasicDBList append = new BasicDBList();
-            append.add(searchIn.get(pos));
+            append.add(Util.clone(searchIn.get(pos)));
             ret.append(projectionKey, append);
             LOG.debug("$elemMatch projection of field \"{}\", gave result: {} ({})", projectionKey, ret, ret.getClass());
           }
@@ -800,8 +1125,6 @@ public class FongoDBCollection extends DBCollection {
         });
         objectsToSearch = Arrays.asList(objectsToSort);
       }
-    } else {
-      objectsToSearch = sortObjects(new BasicDBObject(FONGO_SPECIAL_ORDER_BY, 1), objects);
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug("sorted objectsToSearch " + objectsToSearch);
@@ -809,6 +1132,29 @@ public class FongoDBCollection extends DBCollection {
     return objectsToSearch;
   }
 
+  /**
+   * Without orderby, the objects matching a $near of the filter are sorted by distance.
+   */
+  private Collection<DBObject> sortObjects(final DBObject orderby, final Filter filter, final Collection<DBObject> objects) {
+    final Map<DBObject, Double> distances = ExpressionParser.nearDistances(filter);
+    if (orderby != null || distances == null) {
+      return sortObjects(orderby, objects);
+    }
+    List<DBObject> matching = new ArrayList<DBObject>();
+    for (DBObject object : objects) {
+      if (filter.apply(object)) {
+        matching.add(object);
+      }
+    }
+    Collections.sort(matching, new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        return distances.get(o1).compareTo(distances.get(o2));
+      }
+    });
+    return matching;
+  }
+
 
   @Override
   public synchronized long getCount(DBObject query, DBObject fields, long limit, long skip) {
@@ -844,7 +1190,7 @@ public class FongoDBCollection extends DBCollection {
     update = filterLists(update);
     Filter filter = expressionParser.buildFilter(query);
 
-    Iterable<DBObject> objectsToSearch = sortObjects(sort, filterByIndexes(query));
+    Iterable<DBObject> objectsToSearch = sortObjects(sort, filter, filterByIndexes(query));
     DBObject beforeObject = null;
     DBObject afterObject = null;
     for (DBObject dbo : objectsToSearch) {
@@ -853,11 +1199,17 @@ public class FongoDBCollection extends DBCollection {
         if (!remove) {
           afterObject = Util.clone(beforeObject);
           updateEngine.doUpdate(afterObject, update, query, false);
-          addToIndexes(afterObject, beforeObject, getWriteConcern());
+          if (!returnNew) {
+            // addToIndexes releases the stored object.
+            beforeObject = Util.clone(beforeObject);
+          }
+          addToIndexes(afterObject, dbo, getWriteConcern());
+          awaitDurable(getWriteConcern());
           break;
         } else {
+          DBObject removed = replaceWithObjectClass(applyProjections(dbo, fields));
           remove(dbo);
-          return dbo;
+          return removed;
         }
       }
     }
@@ -868,6 +1220,7 @@ public class FongoDBCollection extends DBCollection {
       beforeObject = new BasicDBObject();
       afterObject = createUpsertObject(query);
       fInsert(updateEngine.doUpdate(afterObject, update, query, upsert), getWriteConcern());
+      awaitDurable(getWriteConcern());
     }
 
     final DBObject resultObject;
@@ -902,14 +1255,23 @@ public class FongoDBCollection extends DBCollection {
     return new ArrayList(results);
   }
 
+  /**
+   * The documents are computed by batches of {@link AggregationOptions#getBatchSize()} when the cursor is read.
+   */
   @Override
   public Cursor aggregate(List<DBObject> pipeline, AggregationOptions options, ReadPreference readPreference) {
-    return this.createQueryResultIterator(this.aggregate(pipeline, readPreference).results().iterator());
+    Aggregator aggregator = new Aggregator(fongoDb, this, pipeline, options.getMaxTime(TimeUnit.MILLISECONDS), Boolean.TRUE.equals(options.getAllowDiskUse()));
+    return aggregator.cursor(options.getBatchSize() == null ? 0 : options.getBatchSize());
   }
 
   @Override
-  public List<Cursor> parallelScan(ParallelScanOptions options) {
-    return Arrays.asList((Cursor) this.createQueryResultIterator(this._idIndex.values().iterator()));
+  public synchronized List<Cursor> parallelScan(ParallelScanOptions options) {
+    List<DBObject> results = new ArrayList<DBObject>(_idIndex.size());
+    @SuppressWarnings("unchecked") Collection<DBObject> objects = _idIndex.values();
+    for (DBObject dbo : objects) {
+      results.add(copyForResult(dbo, null));
+    }
+    return Arrays.asList((Cursor) this.createQueryResultIterator(results.iterator()));
   }
 
   @Override
@@ -921,7 +1283,7 @@ public class FongoDBCollection extends DBCollection {
 
   protected synchronized void _dropIndexes(String name) throws MongoException {
     DBCollection indexColl = fongoDb.getCollection("system.indexes");
-    indexColl.remove(new BasicDBObject("name", name));
+    indexColl.remove(new BasicDBObject("ns", getFullName()).append("name", name));
     ListIterator<IndexAbstract> iterator = indexes.listIterator();
     while (iterator.hasNext()) {
       IndexAbstract index = iterator.next();
@@ -933,7 +1295,7 @@ public class FongoDBCollection extends DBCollection {
   }
 
   protected synchronized void _dropIndexes() {
-    List<DBObject> indexes = fongoDb.getCollection("system.indexes").find().toArray();
+    List<DBObject> indexes = fongoDb.getCollection("system.indexes").find(new BasicDBObject("ns", getFullName())).toArray();
     // Two step for no concurrent modification exception
     for (DBObject index : indexes) {
       if (!ID_NAME_INDEX.equals(index.get("name").toString())) {
@@ -942,9 +1304,35 @@ public class FongoDBCollection extends DBCollection {
     }
   }
 
+  /**
+   * Give back the space left by updates and removes, see the compact command.
+   */
+  synchronized void compact() {
+    try {
+      store.compact();
+    } finally {
+      store.commit();
+    }
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   public void drop() {
+    synchronized (this) {
+      ownIndexes();
+      version++;
+      if (undoLog != null) {
+        for (DBObject object : (List<DBObject>) _idIndex.values()) {
+          logUndo(object.get(ID_KEY), object);
+        }
+      }
+    }
     _idIndex.clear();
+    try {
+      store.clear();
+    } finally {
+      store.commit();
+    }
     _dropIndexes(); // _idIndex must stay.
     fongoDb.removeCollection(this);
   }
@@ -1008,6 +1396,7 @@ public class FongoDBCollection extends DBCollection {
   private synchronized void addToIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
     // Ensure "insert/update" create collection into "fongoDB"
     this.fongoDb.addCollection(this);
+    ownIndexes();
     Set<String> queryFields = object.keySet();
     // First, try to see if index can add the new value.
     for (IndexAbstract index : indexes) {
@@ -1021,14 +1410,24 @@ public class FongoDBCollection extends DBCollection {
       }
     }
 
-    DBObject idFirst = Util.cloneIdFirst(object);
-    Set<String> oldQueryFields = oldObject == null ? Collections.<String>emptySet() : oldObject.keySet();
-    for (IndexAbstract index : indexes) {
-      if (index.canHandle(queryFields)) {
-        index.addOrUpdate(idFirst, oldObject);
-      } else if (index.canHandle(oldQueryFields))
-        // In case of update and removing a field, we must remove from the index.
-        index.remove(oldObject);
+    logUndo(object.get(ID_KEY), oldObject);
+    version++;
+    try {
+      // object is never shared with the caller : no need to clone it again.
+      DBObject stored = store.store(Util.idFirst(object));
+      Set<String> oldQueryFields = oldObject == null ? Collections.<String>emptySet() : oldObject.keySet();
+      for (IndexAbstract index : indexes) {
+        if (index.canHandle(queryFields)) {
+          index.addOrUpdate(stored, oldObject);
+        } else if (index.canHandle(oldQueryFields))
+          // In case of update and removing a field, we must remove from the index.
+          index.remove(oldObject);
+      }
+      if (oldObject != null) {
+        store.release(oldObject);
+      }
+    } finally {
+      store.commit();
     }
   }
 
@@ -1038,12 +1437,104 @@ public class FongoDBCollection extends DBCollection {
    * @param object object to remove.
    */
   private synchronized void removeFromIndexes(DBObject object) {
+    ownIndexes();
+    logUndo(object.get(ID_KEY), object);
+    version++;
     Set<String> queryFields = object.keySet();
+    try {
+      for (IndexAbstract index : indexes) {
+        if (index.canHandle(queryFields)) {
+          index.remove(object);
+        }
+      }
+      store.release(object);
+    } finally {
+      store.commit();
+    }
+  }
+
+  /**
+   * Copy the indexes shared with a fork before modifying them.
+   */
+  private void ownIndexes() {
+    if (shared) {
+      ListIterator<IndexAbstract> iterator = indexes.listIterator();
+      while (iterator.hasNext()) {
+        IndexAbstract index = iterator.next();
+        IndexAbstract copy = index.copy();
+        if (index == _idIndex) {
+          _idIndex = copy;
+        }
+        iterator.set(copy);
+      }
+      shared = false;
+    }
+  }
+
+  /**
+   * @return true if there's an index on this field only, not an embedded one, see {@link #findByIndex(String, Object)}.
+   */
+  public synchronized boolean isIndexed(String field) {
+    return indexOn(field) != null;
+  }
+
+  /**
+   * The documents matching <code>{field: value}</code>, or <code>{field: {$in: value}}</code> for a list, found
+   * through the index on this field : for the joins of $lookup, without the query and the cursor of a find. The
+   * documents are in natural order, like a find.
+   *
+   * @return copies of the documents, null if the field is not indexed.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<DBObject> findByIndex(String field, Object value) {
+    IndexAbstract index = indexOn(field);
+    if (index == null) {
+      return null;
+    }
+    Object condition = value instanceof List ? new BasicDBObject(QueryOperators.IN, value) : value;
+    List<DBObject> found = new ArrayList<DBObject>(index.retrieveObjects(new BasicDBObject(field, condition)));
+    if (found.size() > 1) {
+      Collections.sort(found, naturalOrder());
+    }
+    List<DBObject> results = new ArrayList<DBObject>(found.size());
+    for (DBObject object : found) {
+      results.add(copyForResult(object, null));
+    }
+    return results;
+  }
+
+  /**
+   * @return the order of the stored documents in the collection, computed once until the next write.
+   */
+  @SuppressWarnings("unchecked")
+  private Comparator<DBObject> naturalOrder() {
+    if (naturalPositions == null || naturalVersion != version) {
+      List<DBObject> values = _idIndex.values();
+      naturalPositions = new IdentityHashMap<DBObject, Integer>(values.size());
+      for (int i = 0; i < values.size(); i++) {
+        naturalPositions.put(values.get(i), i);
+      }
+      naturalVersion = version;
+    }
+    final Map<DBObject, Integer> positions = naturalPositions;
+    return new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        return positions.get(o1).compareTo(positions.get(o2));
+      }
+    };
+  }
+
+  private IndexAbstract indexOn(String field) {
+    if (field.indexOf('.') >= 0) {
+      return null;
+    }
     for (IndexAbstract index : indexes) {
-      if (index.canHandle(queryFields)) {
-        index.remove(object);
+      if (!index.isGeoIndex() && index.getFields().size() == 1 && index.getFields().contains(field)) {
+        return index;
       }
     }
+    return null;
   }
 
   public synchronized Collection<IndexAbstract> getIndexes() {
@@ -1079,4 +1570,17 @@ public class FongoDBCollection extends DBCollection {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * A write to undo : the document with this id is replaced by the document before the write, if any.
+   */
+  private static final class Undo {
+    final Object id;
+    final DBObject before;
+
+    Undo(Object id, DBObject before) {
+      this.id = id;
+      this.before = before;
+    }
+  }
 }
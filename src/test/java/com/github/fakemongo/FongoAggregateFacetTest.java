@@ -0,0 +1,102 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.aggregation.Facet;
+import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FongoAggregateFacetTest {
+
+  @Rule
+  public FongoRule fongoRule = new FongoRule(false);
+
+  @Test
+  public void should_facet_run_each_pipeline_on_the_documents_of_the_previous_stage() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, category: \"pie\", price: 10 },\n" +
+        "{ _id: 2, category: \"cake\", price: 25 },\n" +
+        "{ _id: 3, category: \"pie\", price: 12 },\n" +
+        "{ _id: 4, category: \"bread\", price: 4 },\n" +
+        "{ _id: 5, category: \"pie\", price: 30 }]");
+    List<DBObject> pipeline = fongoRule.parseList("[{ $match: { price: { $gt: 5 } } },\n" +
+        "{ $facet: { byCategory: [ { $group: { _id: \"$category\", count: { $sum: 1 } } }, { $sort: { _id: 1 } } ],\n" +
+        "            top: [ { $sort: { price: -1 } }, { $limit: 2 }, { $project: { price: 1 } } ],\n" +
+        "            cheap: [ { $match: { price: { $lt: 20 } } }, { $project: { _id: 1 } } ] } }]");
+
+    List<DBObject> result = aggregate(coll, pipeline);
+
+    assertEquals(fongoRule.parseList("[{ byCategory: [ { _id: \"cake\", count: 1 }, { _id: \"pie\", count: 3 } ],\n" +
+        "top: [ { _id: 5, price: 30 }, { _id: 2, price: 25 } ],\n" +
+        "cheap: [ { _id: 1 }, { _id: 3 } ] }]"), result);
+  }
+
+  @Test
+  public void should_facet_share_the_documents_between_the_pipelines() {
+    DBCollection coll = fongoRule.newCollection();
+    DBCollection other = fongoRule.newCollection();
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for (int i = 0; i < 25000; i++) {
+      documents.add(new BasicDBObject("_id", i).append("k", i % 10));
+    }
+    coll.insert(documents);
+    other.insert(new BasicDBObject("_id", 3));
+    List<DBObject> pipeline = fongoRule.parseList("[{ $facet: {\n" +
+        "  joined: [ { $match: { _id: 3 } }, { $lookup: { from: \"" + other.getName() + "\", localField: \"_id\", foreignField: \"_id\", as: \"other\" } } ],\n" +
+        "  all: [ { $match: { _id: 3 } } ],\n" +
+        "  counts: [ { $group: { _id: \"$k\", count: { $sum: 1 } } }, { $match: { _id: 3 } } ] } }]");
+
+    DBObject result = aggregate(coll, pipeline).get(0);
+
+    assertEquals(fongoRule.parseList("[{ _id: 3, k: 3, other: [ { _id: 3 } ] }]"), result.get("joined"));
+    assertEquals(fongoRule.parseList("[{ _id: 3, k: 3 }]"), result.get("all"));
+    assertEquals(fongoRule.parseList("[{ _id: 3, count: 2500 }]"), result.get("counts"));
+  }
+
+  @Test
+  public void should_facet_refuse_out() {
+    DBCollection coll = fongoRule.newCollection();
+    coll.insert(new BasicDBObject("_id", 1));
+    List<DBObject> pipeline = fongoRule.parseList("[{ $facet: { out: [ { $out: \"target\" } ] } }]");
+
+    try {
+      aggregate(coll, pipeline);
+      fail("$out is not allowed in $facet");
+    } catch (MongoException e) {
+      assertEquals(40600, e.getCode());
+    }
+    assertFalse(coll.getDB().collectionExists("target"));
+  }
+
+  @Test
+  public void should_facet_pipelines_fail_past_the_deadline() {
+    DBCollection coll = fongoRule.newCollection();
+    DBObject facet = fongoRule.parseDBObject("{ $facet: { count: [ { $group: { _id: null, count: { $sum: 1 } } } ] } }");
+    List<DBObject> documents = fongoRule.parseList("[{ _id: 1 }, { _id: 2 }]");
+
+    Iterator<DBObject> result = Facet.INSTANCE.apply((FongoDBCollection) coll, documents.iterator(), facet, false, System.nanoTime() - 1);
+
+    try {
+      result.hasNext();
+      fail("must exceed the time limit");
+    } catch (MongoExecutionTimeoutException e) {
+      assertEquals(50, e.getCode());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DBObject> aggregate(DBCollection coll, List<DBObject> pipeline) {
+    return (List<DBObject>) coll.aggregate(pipeline).getCommandResult().get("result");
+  }
+}
@@ -1,14 +1,22 @@
 package com.github.fakemongo;
 
 import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
@@ -54,5 +62,159 @@ public class FongoAggregateGroupTest {
         "             ]"), result);
   }
 
+  @Test
+  public void should_group_in_one_pass_with_numbers_of_any_type_in_the_same_group() {
+    DBCollection coll = fongoRule.newCollection();
+    for (int i = 0; i < 10000; i++) {
+      Number category = i % 3 == 0 ? (Number) (long) (i % 1000) : i % 3 == 1 ? (Number) (double) (i % 1000) : (Number) (i % 1000);
+      coll.insert(new BasicDBObject("category", category).append("value", i));
+    }
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$category").append("count", new BasicDBObject("$sum", 1)).append("total", new BasicDBObject("$sum", "$value")));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+    List<DBObject> pipeline = Arrays.asList(group, sort);
+
+    List<DBObject> result = (List<DBObject>) coll.aggregate(pipeline).getCommandResult().get("result");
+
+    assertEquals(1000, result.size());
+    assertEquals(10, result.get(42).get("count"));
+    assertEquals(45 * 1000 + 10 * 42, result.get(42).get("total"));
+    // The pipeline can be used again.
+    assertEquals(result, coll.aggregate(pipeline).getCommandResult().get("result"));
+  }
 
+  @Test
+  public void should_group_fail_when_the_groups_exceed_100MB() {
+    DBCollection coll = fongoRule.newCollection();
+    char[] chars = new char[1024 * 1024];
+    Arrays.fill(chars, 'a');
+    String big = new String(chars);
+    for (int i = 0; i < 60; i++) {
+      coll.insert(new BasicDBObject("big", big));
+    }
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", null).append("bigs", new BasicDBObject("$push", "$big")));
+
+    try {
+      coll.aggregate(group);
+      fail("$group must be limited to 100MB");
+    } catch (MongoException e) {
+      assertEquals(16945, e.getCode());
+    }
+  }
+
+  @Test
+  public void should_group_on_disk_when_the_groups_exceed_100MB_and_allowDiskUse() {
+    DBCollection coll = fongoRule.newCollection();
+    char[] chars = new char[1024 * 1024];
+    Arrays.fill(chars, 'a');
+    String big = new String(chars);
+    for (int i = 0; i < 120; i++) {
+      coll.insert(new BasicDBObject("_id", i).append("k", i % 3).append("big", big));
+    }
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: \"$k\", bigs: { $push: \"$big\" }, ids: { $push: \"$_id\" },\n" +
+        "first: { $first: \"$_id\" }, last: { $last: \"$_id\" }, count: { $sum: 1 } } }");
+    DBObject project = fongoRule.parseDBObject("{ $project: { ids: 1, first: 1, last: 1, count: 1 } }");
+    DBObject sort = fongoRule.parseDBObject("{ $sort: { _id: 1 } }");
+
+    Cursor cursor = coll.aggregate(Arrays.asList(group, project, sort),
+        AggregationOptions.builder().allowDiskUse(true).outputMode(AggregationOptions.OutputMode.CURSOR).build());
+
+    for (int k = 0; k < 3; k++) {
+      DBObject result = cursor.next();
+      assertEquals(k, result.get("_id"));
+      assertEquals(40, result.get("count"));
+      assertEquals(k, result.get("first"));
+      assertEquals(117 + k, result.get("last"));
+      List<Object> ids = new ArrayList<Object>();
+      for (int i = k; i < 120; i += 3) {
+        ids.add(i);
+      }
+      assertEquals(ids, result.get("ids"));
+    }
+    assertFalse(cursor.hasNext());
+  }
+
+  @Test
+  public void should_sum_promote_to_long_then_double_on_overflow_or_mixed_input() {
+    DBCollection coll = fongoRule.newCollection();
+    coll.insert(new BasicDBObject("g", "int").append("v", Integer.MAX_VALUE));
+    coll.insert(new BasicDBObject("g", "int").append("v", 1));
+    coll.insert(new BasicDBObject("g", "long").append("v", Long.MAX_VALUE));
+    coll.insert(new BasicDBObject("g", "long").append("v", 1));
+    coll.insert(new BasicDBObject("g", "mixed").append("v", 1));
+    coll.insert(new BasicDBObject("g", "mixed").append("v", 2.5D));
+    coll.insert(new BasicDBObject("g", "mixed").append("v", "not a number"));
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$g").append("sum", new BasicDBObject("$sum", "$v"))
+        .append("avg", new BasicDBObject("$avg", "$v")).append("min", new BasicDBObject("$min", "$v")).append("max", new BasicDBObject("$max", "$v")));
+
+    List<DBObject> result = (List<DBObject>) coll.aggregate(group).getCommandResult().get("result");
+
+    assertEquals(3, result.size());
+    assertEquals(Integer.MAX_VALUE + 1L, result.get(0).get("sum"));
+    assertEquals(1, result.get(0).get("min"));
+    assertEquals(Long.MAX_VALUE + 1D, result.get(1).get("sum"));
+    assertEquals(Long.MAX_VALUE / 2D, (Double) result.get(1).get("avg"), 1D);
+    assertEquals(3.5D, result.get(2).get("sum"));
+    assertEquals(1.75D, result.get(2).get("avg"));
+    assertEquals(1, result.get(2).get("min"));
+    assertEquals("not a number", result.get(2).get("max"));
+  }
+
+  @Test
+  public void should_group_big_inputs_by_chunks_like_in_one_pass() {
+    DBCollection coll = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < 45000; i++) {
+      objects.add(new BasicDBObject("_id", i).append("g", i % 7).append("v", i % 5 == 0 ? (Object) 0.5D : i));
+    }
+    coll.insert(objects);
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$g").append("count", new BasicDBObject("$sum", 1))
+        .append("sum", new BasicDBObject("$sum", "$v")).append("min", new BasicDBObject("$min", "$v")).append("max", new BasicDBObject("$max", "$v"))
+        .append("first", new BasicDBObject("$first", "$_id")).append("last", new BasicDBObject("$last", "$_id"))
+        .append("all", new BasicDBObject("$push", "$_id")).append("distinct", new BasicDBObject("$addToSet", "$v")));
+
+    List<DBObject> result = (List<DBObject>) coll.aggregate(group).getCommandResult().get("result");
+
+    assertEquals(7, result.size());
+    for (int g = 0; g < 7; g++) {
+      DBObject groupResult = result.get(g);
+      assertEquals(g, groupResult.get("_id"));
+      List<Integer> all = (List<Integer>) groupResult.get("all");
+      double sum = 0;
+      int integers = 0;
+      int max = 0;
+      for (int i = 0; i < all.size(); i++) {
+        int id = g + 7 * i;
+        assertEquals(Integer.valueOf(id), all.get(i));
+        sum += id % 5 == 0 ? 0.5D : id;
+        if (id % 5 != 0) {
+          integers++;
+          max = id;
+        }
+      }
+      assertEquals(all.size(), groupResult.get("count"));
+      assertEquals(sum, (Double) groupResult.get("sum"), 0.0001D);
+      assertEquals(0.5D, groupResult.get("min"));
+      assertEquals(max, groupResult.get("max"));
+      assertEquals(g, groupResult.get("first"));
+      assertEquals(all.get(all.size() - 1), groupResult.get("last"));
+      assertEquals(integers + 1, ((List) groupResult.get("distinct")).size());
+    }
+  }
+
+  @Test
+  public void should_group_by_the_expressions_of_the_id() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, item: { category: \"pie\", type: \"apple\" }, price: 10 },\n" +
+        "{ _id: 2, item: { category: \"PIE\", type: \"cherry\" }, price: 20 },\n" +
+        "{ _id: 3, item: { category: \"cake\", type: \"lemon\" }, price: 6 },\n" +
+        "{ _id: 4, item: { type: \"bread\" }, price: 4 }]");
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: { category: { $toLower: { $ifNull: [\"$item.category\", \"none\"] } } },\n" +
+        "                     half: { $sum: { $divide: [\"$price\", 2] } } } }");
+
+    List<DBObject> result = (List<DBObject>) coll.aggregate(group).getCommandResult().get("result");
+
+    assertEquals(fongoRule.parseList("[{ _id: { category: \"pie\" }, half: 15.0 },\n" +
+        "{ _id: { category: \"cake\" }, half: 3.0 },\n" +
+        "{ _id: { category: \"none\" }, half: 2.0 }]"), result);
+  }
 }
@@ -0,0 +1,118 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.index.IndexAbstract;
+import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.MongoException;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FongoAggregateLookupTest {
+
+  @Rule
+  public FongoRule fongoRule = new FongoRule(false);
+
+  private DBCollection orders;
+
+  private DBCollection inventory;
+
+  @Before
+  public void setup() {
+    orders = fongoRule.newCollection();
+    fongoRule.insertJSON(orders, "[{ _id: 1, item: \"abc\", price: 12 },\n" +
+        "{ _id: 2, item: \"jkl\", price: 20 },\n" +
+        "{ _id: 3 }]");
+    inventory = fongoRule.newCollection();
+    fongoRule.insertJSON(inventory, "[{ _id: 1, sku: \"abc\", instock: 120 },\n" +
+        "{ _id: 2, sku: \"def\", instock: 80 },\n" +
+        "{ _id: 3, sku: \"ijk\", instock: 60 },\n" +
+        "{ _id: 4, sku: \"jkl\", instock: 70 },\n" +
+        "{ _id: 5, sku: null },\n" +
+        "{ _id: 6 }]");
+  }
+
+  // see http://docs.mongodb.org/manual/reference/operator/aggregation/lookup/
+  @Test
+  public void should_lookup_join_the_documents_by_hash() {
+    assertEquals(expected(), lookup("item", "sku"));
+  }
+
+  @Test
+  public void should_lookup_join_the_documents_through_the_index_of_the_foreign_field() {
+    inventory.createIndex(new BasicDBObject("sku", 1));
+    IndexAbstract index = null;
+    for (IndexAbstract candidate : ((FongoDBCollection) inventory).getIndexes()) {
+      if (candidate.getName().equals("sku_1")) {
+        index = candidate;
+      }
+    }
+    long lookups = index.getLookupCount();
+
+    assertEquals(expected(), lookup("item", "sku"));
+    // The document without item is joined by a scan : the index has no document without sku.
+    assertEquals(lookups + 2, index.getLookupCount());
+  }
+
+  @Test
+  public void should_lookup_join_each_element_of_an_array() {
+    orders.insert(new BasicDBObject("_id", 4).append("item", fongoRule.parseList("[\"jkl\", \"abc\", \"jkl\"]")));
+
+    List<DBObject> result = lookup("item", "sku");
+
+    assertEquals(fongoRule.parseList("[{ _id: 1, sku: \"abc\", instock: 120 }, { _id: 4, sku: \"jkl\", instock: 70 }]"), result.get(3).get("inventory_docs"));
+  }
+
+  @Test
+  public void should_lookup_join_an_array_in_natural_order_with_or_without_index() {
+    inventory.insert(new BasicDBObject("_id", 7).append("sku", "aaa"));
+    orders.insert(new BasicDBObject("_id", 4).append("item", fongoRule.parseList("[\"aaa\", \"jkl\"]")));
+    List<DBObject> expected = fongoRule.parseList("[{ _id: 4, sku: \"jkl\", instock: 70 }, { _id: 7, sku: \"aaa\" }]");
+
+    List<DBObject> hashJoined = lookup("item", "sku");
+    inventory.createIndex(new BasicDBObject("sku", 1));
+    IndexAbstract index = null;
+    for (IndexAbstract candidate : ((FongoDBCollection) inventory).getIndexes()) {
+      if (candidate.getName().equals("sku_1")) {
+        index = candidate;
+      }
+    }
+    long lookups = index.getLookupCount();
+    List<DBObject> indexJoined = lookup("item", "sku");
+
+    assertEquals(expected, hashJoined.get(3).get("inventory_docs"));
+    assertEquals(expected, indexJoined.get(3).get("inventory_docs"));
+    assertEquals(lookups + 3, index.getLookupCount());
+  }
+
+  @Test
+  public void should_lookup_fail_without_as() {
+    DBObject lookup = new BasicDBObject("$lookup", new BasicDBObject("from", inventory.getName()).append("localField", "item").append("foreignField", "sku"));
+
+    try {
+      orders.aggregate(lookup);
+      fail("as is missing");
+    } catch (MongoException e) {
+      assertEquals(4572, e.getCode());
+    }
+  }
+
+  private List<DBObject> expected() {
+    return fongoRule.parseList("[{ _id: 1, item: \"abc\", price: 12, inventory_docs: [{ _id: 1, sku: \"abc\", instock: 120 }] },\n" +
+        "{ _id: 2, item: \"jkl\", price: 20, inventory_docs: [{ _id: 4, sku: \"jkl\", instock: 70 }] },\n" +
+        "{ _id: 3, inventory_docs: [{ _id: 5, sku: null }, { _id: 6 }] }]");
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DBObject> lookup(String localField, String foreignField) {
+    DBObject lookup = new BasicDBObject("$lookup", new BasicDBObject("from", inventory.getName())
+        .append("localField", localField).append("foreignField", foreignField).append("as", "inventory_docs"));
+    return (List<DBObject>) orders.aggregate(lookup).getCommandResult().get("result");
+  }
+}
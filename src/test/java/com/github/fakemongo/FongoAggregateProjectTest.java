@@ -16,7 +16,6 @@ import org.assertj.core.api.Assertions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
-import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -100,7 +99,6 @@ public class FongoAggregateProjectTest {
    * See http://docs.mongodb.org/manual/reference/aggregation/concat/
    */
   @Test
-  @Ignore // TODO(twillouer)
   public void testConcatNullOrMissingIfNull() {
     DBCollection coll = fongoRule.newCollection();
     fongoRule.insertJSON(coll, "[{ _id: 1, item: { sec: \"dessert\", category: \"pie\", type: \"apple\" } },\n" +
@@ -131,7 +129,6 @@ public class FongoAggregateProjectTest {
   }
 
   @Test
-  @Ignore // TODO(twillouer)
   public void testProjectDoenstSendArray() {
     DBCollection coll = fongoRule.newCollection();
     coll.insert(new BasicDBObject("a", Util.list(1, 2, 3)));
@@ -1047,6 +1044,37 @@ public class FongoAggregateProjectTest {
     Assertions.assertThat(output.results()).isEqualTo(fongoRule.parseList("[{_id:1, \"day\":8}]"));
   }
 
+  @Test
+  public void should_nested_inclusion_leave_out_the_missing_parent() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    fongoRule.insertJSON(collection, "[{_id:1, a:{b:1, c:2}}, {_id:2, a:5}, {_id:3}]");
+
+    // When
+    AggregationOutput dotted = collection.aggregate(fongoRule.parseList("[{ $project: { 'a.b': 1 } }]"));
+    AggregationOutput nested = collection.aggregate(fongoRule.parseList("[{ $project: { a: { b: 1 } } }]"));
+
+    // Then
+    List<DBObject> expected = fongoRule.parseList("[{_id:1, a:{b:1}}, {_id:2}, {_id:3}]");
+    Assertions.assertThat(dotted.results()).isEqualTo(expected);
+    Assertions.assertThat(nested.results()).isEqualTo(expected);
+  }
+
+  @Test
+  public void should_nested_inclusion_apply_to_each_element_of_an_array() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    fongoRule.insertJSON(collection, "[{_id:1, l:[{x:1, y:2}, {x:3}, 4, {y:5}]}, {_id:2, l:[{x:1, y:2}, {x:3}]}]");
+
+    // When
+    AggregationOutput output = collection.aggregate(fongoRule.parseList("[{ $project: { 'l.x': 1, 'l.z': '$_id' } }]"));
+    AggregationOutput included = collection.aggregate(fongoRule.parseList("[{ $project: { 'l.x': 1 } }]"));
+
+    // Then
+    Assertions.assertThat(included.results()).isEqualTo(fongoRule.parseList("[{_id:1, l:[{x:1}, {x:3}, {}]}, {_id:2, l:[{x:1}, {x:3}]}]"));
+    Assertions.assertThat(output.results()).isEqualTo(fongoRule.parseList("[{_id:1, l:[{x:1, z:1}, {x:3, z:1}, {z:1}, {z:1}]}, {_id:2, l:[{x:1, z:2}, {x:3, z:2}]}]"));
+  }
+
   private DBCollection createTestCollection() {
     DBCollection collection = fongoRule.newCollection();
     collection.insert(new BasicDBObject("myId", "p0").append("date", 1));
@@ -2,19 +2,31 @@ package com.github.fakemongo;
 
 import com.github.fakemongo.impl.Util;
 import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.assertj.core.api.Assertions;
 import org.junit.Assert;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -240,16 +252,37 @@ public class FongoAggregateTest {
     List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
     assertEquals(3, result.size());
 
-    // TODO : remove comment when _id can NOT be unique anymore.
-//    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
-    assertEquals("william", Util.extractField(result.get(0), "author"));
-    assertEquals("scala", Util.extractField(result.get(0), "tags"));
-    assertEquals("william", Util.extractField(result.get(1), "author"));
-    assertEquals("java", Util.extractField(result.get(1), "tags"));
-    assertEquals("william", Util.extractField(result.get(2), "author"));
-    assertEquals("mongo", Util.extractField(result.get(2), "tags"));
+    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
+  }
+
+  @Test
+  public void shouldUnwindEmbeddedListWithoutModifyingTheParent() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("book", new BasicDBObject("title", "fongo").append("tags", Util.list("java", "mongo"))));
+    DBObject unwind = new BasicDBObject("$unwind", "$book.tags");
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$_id").append("tags", new BasicDBObject("$push", "$book.tags"))
+        .append("books", new BasicDBObject("$push", "$book")));
+
+    List<DBObject> result = (List<DBObject>) collection.aggregate(Arrays.asList(new BasicDBObject("$skip", 0), unwind, group)).getCommandResult().get("result");
+
+    Assert.assertEquals(fongoRule.parseList("[ { _id : 1 , tags : [ \"java\", \"mongo\" ] , " +
+        "books : [ { title : \"fongo\" , tags : \"java\" } , { title : \"fongo\" , tags : \"mongo\" } ] } ]"), result);
+  }
+
+  @Test
+  public void shouldUnwindResultsShareNoObject() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("meta", new BasicDBObject("views", 1))
+        .append("book", new BasicDBObject("info", new BasicDBObject("pages", 10)).append("tags", Util.list("java", "mongo"))));
+    DBObject unwind = new BasicDBObject("$unwind", "$book.tags");
+
+    List<DBObject> result = (List<DBObject>) collection.aggregate(Arrays.asList(new BasicDBObject("$skip", 0), unwind)).getCommandResult().get("result");
+    ((DBObject) result.get(0).get("meta")).put("views", 2);
+    ((DBObject) ((DBObject) result.get(0).get("book")).get("info")).put("pages", 20);
+
+    Assert.assertEquals(fongoRule.parseDBObject("{ _id : 1 , meta : { views : 1 } , book : { info : { pages : 10 } , tags : \"mongo\" } }"), result.get(1));
   }
 
   @Test
@@ -602,6 +635,257 @@ public class FongoAggregateTest {
   }
 
 
+  @Test
+  public void should_limit_stop_pulling_the_previous_stages() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("scala", "java")));
+    collection.insert(new BasicDBObject("_id", 2).append("tags", "not an array"));
+
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+    DBObject limit = new BasicDBObject("$limit", 2);
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(unwind, limit));
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(2, result.size());
+    assertEquals("scala", result.get(0).get("tags"));
+    assertEquals("java", result.get(1).get("tags"));
+  }
+
+  @Test
+  public void should_limit_must_be_positive() {
+    ExpectedMongoException.expect(exception, MongoException.class);
+    ExpectedMongoException.expectCode(exception, 15958);
+
+    DBObject limit = new BasicDBObject("$limit", 0);
+
+    createTestCollection().aggregate(Arrays.asList(limit));
+  }
+
+  @Test
+  public void should_leading_match_sort_and_limit_query_the_collection() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("n", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 10).append("tags", Util.list(i)));
+    }
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("n", new BasicDBObject("$gte", 8)));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", -1));
+    DBObject limit = new BasicDBObject("$limit", 3);
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+
+    AggregationOutput output = collection.aggregate(Arrays.asList(match, sort, limit, unwind));
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    assertEquals(3, result.size());
+    assertEquals(99, result.get(0).get("tags"));
+    assertEquals(98, result.get(1).get("tags"));
+    assertEquals(89, result.get(2).get("tags"));
+  }
+
+  @Test
+  public void should_sort_then_skip_and_limit_keep_the_same_documents_as_a_whole_sort() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 1000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", (i * 7) % 10).append("s", "s" + i));
+    }
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("n", new BasicDBObject("$lt", 5)));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("n", -1));
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("n", 1));
+    DBObject skip = new BasicDBObject("$skip", 195);
+    DBObject limit = new BasicDBObject("$limit", 10);
+
+    List<DBObject> all = (List<DBObject>) collection.aggregate(Arrays.asList(match, project, sort)).getCommandResult().get("result");
+    List<DBObject> result = (List<DBObject>) collection.aggregate(Arrays.asList(match, project, sort, project, skip, limit)).getCommandResult().get("result");
+
+    assertEquals(500, all.size());
+    assertEquals(all.subList(195, 205), result);
+    assertEquals(new BasicDBObject("_id", 999).append("n", 3), result.get(4));
+  }
+
+  @Test
+  public void should_cursor_compute_the_documents_by_batches() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("d", i - 50));
+    }
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("x", new BasicDBObject("$divide", Arrays.asList(1, "$d"))));
+
+    Cursor cursor = collection.aggregate(Arrays.asList(project), AggregationOptions.builder().batchSize(10).outputMode(AggregationOptions.OutputMode.CURSOR).build());
+
+    // The 50th document can't be divided : only its batch fails.
+    int read = 0;
+    try {
+      while (cursor.hasNext()) {
+        assertEquals(read, cursor.next().get("_id"));
+        read++;
+      }
+      fail("must fail on the 50th document");
+    } catch (MongoException e) {
+      assertEquals(16608, e.getCode());
+    }
+    assertEquals(50, read);
+  }
+
+  @Test
+  public void should_cursor_fail_past_the_max_time() throws InterruptedException {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+    DBObject match = new BasicDBObject("$match", new BasicDBObject());
+    Cursor cursor = collection.aggregate(Arrays.asList(match),
+        AggregationOptions.builder().maxTime(1, TimeUnit.MILLISECONDS).outputMode(AggregationOptions.OutputMode.CURSOR).build());
+    Thread.sleep(10);
+
+    try {
+      cursor.hasNext();
+      fail("must exceed the time limit");
+    } catch (MongoExecutionTimeoutException e) {
+      assertEquals(50, e.getCode());
+    }
+  }
+
+  @Test
+  public void should_sort_on_disk_when_the_documents_exceed_100MB_and_allowDiskUse() {
+    DBCollection collection = createBigCollection();
+    // Not the first stage : else the collection is sorted by the query.
+    DBObject skip = new BasicDBObject("$skip", 0);
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("n", 1));
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("n", 1));
+
+    Cursor cursor = collection.aggregate(Arrays.asList(skip, sort, project),
+        AggregationOptions.builder().allowDiskUse(true).outputMode(AggregationOptions.OutputMode.CURSOR).build());
+
+    // Stable : the documents with the same n stay in the order of the collection.
+    for (int n = 0; n < 7; n++) {
+      for (int i = n; i < 60; i += 7) {
+        assertEquals(new BasicDBObject("_id", i).append("n", n), cursor.next());
+      }
+    }
+    assertFalse(cursor.hasNext());
+  }
+
+  @Test
+  public void should_sort_fail_when_the_documents_exceed_100MB() {
+    DBCollection collection = createBigCollection();
+    DBObject skip = new BasicDBObject("$skip", 0);
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("n", 1));
+
+    try {
+      collection.aggregate(skip, sort);
+      fail("$sort must be limited to 100MB");
+    } catch (MongoException e) {
+      assertEquals(16819, e.getCode());
+    }
+  }
+
+  @Test
+  public void should_out_replace_the_documents_of_the_target_and_keep_its_indexes() {
+    DBCollection collection = createTestCollection();
+    DBCollection target = fongoRule.newCollection();
+    target.insert(new BasicDBObject("_id", "old"));
+    target.createIndex(new BasicDBObject("count", 1));
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$myId").append("count", new BasicDBObject("$sum", 1)));
+    DBObject out = new BasicDBObject("$out", target.getName());
+
+    AggregationOutput output = collection.aggregate(group, out);
+
+    assertEquals(0, ((List) output.getCommandResult().get("result")).size());
+    assertEquals(5, target.count());
+    assertEquals(new BasicDBObject("_id", "p0").append("count", 6), target.findOne(new BasicDBObject("count", 6)));
+    assertEquals(2, target.getIndexInfo().size());
+    for (String name : collection.getDB().getCollectionNames()) {
+      assertFalse(name, name.startsWith("tmp.agg_out"));
+    }
+  }
+
+  @Test
+  public void should_out_leave_the_target_unchanged_on_a_duplicate_key() {
+    DBCollection collection = createTestCollection();
+    DBCollection target = fongoRule.newCollection();
+    target.insert(new BasicDBObject("_id", "old").append("myId", "p0"));
+    target.createIndex(new BasicDBObject("myId", 1), new BasicDBObject("unique", true));
+    DBObject out = new BasicDBObject("$out", target.getName());
+
+    try {
+      collection.aggregate(new BasicDBObject("$project", new BasicDBObject("myId", 1)), out);
+      fail("myId must be unique");
+    } catch (MongoException e) {
+      assertEquals(11000, e.getCode());
+    }
+    assertEquals(Arrays.asList(new BasicDBObject("_id", "old").append("myId", "p0")), target.find().toArray());
+  }
+
+  @Test
+  public void should_out_keep_the_documents_of_the_target_when_the_replace_fails() {
+    DBCollection target = fongoRule.newCollection();
+    target.insert(new BasicDBObject("_id", "old").append("myId", "p0"));
+    target.createIndex(new BasicDBObject("myId", 1), new BasicDBObject("unique", true));
+    // As if the unique index was created on the target after the staging collection.
+    DBCollection staging = fongoRule.newCollection();
+    staging.insert(new BasicDBObject("_id", 1).append("myId", "p1"), new BasicDBObject("_id", 2).append("myId", "p1"));
+
+    try {
+      ((FongoDBCollection) target).replaceDocuments((FongoDBCollection) staging);
+      fail("myId must be unique");
+    } catch (MongoException e) {
+      assertEquals(11000, e.getCode());
+    }
+    assertEquals(Arrays.asList(new BasicDBObject("_id", "old").append("myId", "p0")), target.find().toArray());
+    assertEquals(new BasicDBObject("_id", "old").append("myId", "p0"), target.findOne(new BasicDBObject("myId", "p0")));
+  }
+
+  @Test
+  public void should_out_be_the_last_stage() {
+    DBCollection collection = createTestCollection();
+    DBObject out = new BasicDBObject("$out", "target");
+
+    try {
+      collection.aggregate(out, new BasicDBObject("$limit", 1));
+      fail("$out must be the last stage");
+    } catch (MongoException e) {
+      assertEquals(16991, e.getCode());
+    }
+  }
+
+  @Test
+  public void should_aggregate_concurrently_in_several_fongo() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i = 0; i < 4; i++) {
+        final DBCollection collection = new Fongo("concurrent" + i).getDB("db").getCollection("coll");
+        for (int j = 0; j < 100; j++) {
+          collection.insert(new BasicDBObject("_id", j).append("k", j % (i + 2)));
+        }
+        final DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", null).append("k", new BasicDBObject("$max", "$k")));
+        for (int j = 0; j < 10; j++) {
+          results.add(executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+              return collection.aggregate(group).results().iterator().next().get("k");
+            }
+          }));
+        }
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(i / 10 + 1, results.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private DBCollection createBigCollection() {
+    DBCollection collection = fongoRule.newCollection();
+    char[] chars = new char[1024 * 1024];
+    Arrays.fill(chars, 'a');
+    String big = new String(chars);
+    for (int i = 0; i < 60; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 7).append("big", big));
+    }
+    return collection;
+  }
+
   private DBCollection createTestCollection() {
     DBCollection collection = fongoRule.newCollection();
     collection.insert(new BasicDBObject("myId", "p0").append("date", 1));
@@ -84,16 +84,15 @@ public class FongoAggregateZipTest {
     assertTrue(output.getCommandResult().containsField("result"));
 
     List<DBObject> resultAggregate = (List<DBObject>) output.getCommandResult().get("result");
-    // TODO(twillouer) : $project { _id : 0 } must remove the id field but $sort add him...
-//    Assert.assertEquals(fongoRule.parseList("" +
-//        "[ { \"biggestCity\" : { \"name\" : \"BRIDGEPORT\" , \"pop\" : 141638} , \"smallestCity\" : { \"name\" : \"EAST KILLINGLY\" , \"pop\" : 25} , \"state\" : \"CT\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"BROOKLYN\" , \"pop\" : 2300504} , \"smallestCity\" : { \"name\" : \"NEW HYDE PARK\" , \"pop\" : 1} , \"state\" : \"NY\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"BURLINGTON\" , \"pop\" : 39127} , \"smallestCity\" : { \"name\" : \"UNIV OF VERMONT\" , \"pop\" : 0} , \"state\" : \"VT\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"CRANSTON\" , \"pop\" : 176404} , \"smallestCity\" : { \"name\" : \"CLAYVILLE\" , \"pop\" : 45} , \"state\" : \"RI\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"MANCHESTER\" , \"pop\" : 106452} , \"smallestCity\" : { \"name\" : \"WEST NOTTINGHAM\" , \"pop\" : 27} , \"state\" : \"NH\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"NEWARK\" , \"pop\" : 275572} , \"smallestCity\" : { \"name\" : \"IMLAYSTOWN\" , \"pop\" : 17} , \"state\" : \"NJ\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"PORTLAND\" , \"pop\" : 63268} , \"smallestCity\" : { \"name\" : \"BUSTINS ISLAND\" , \"pop\" : 0} , \"state\" : \"ME\"} , " +
-//        "{ \"biggestCity\" : { \"name\" : \"WORCESTER\" , \"pop\" : 169856} , \"smallestCity\" : { \"name\" : \"BUCKLAND\" , \"pop\" : 16} , \"state\" : \"MA\"}]"), resultAggregate);
+    Assert.assertEquals(fongoRule.parseList("" +
+        "[ { \"biggestCity\" : { \"name\" : \"BRIDGEPORT\" , \"pop\" : 141638} , \"smallestCity\" : { \"name\" : \"EAST KILLINGLY\" , \"pop\" : 25} , \"state\" : \"CT\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"BROOKLYN\" , \"pop\" : 2300504} , \"smallestCity\" : { \"name\" : \"NEW HYDE PARK\" , \"pop\" : 1} , \"state\" : \"NY\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"BURLINGTON\" , \"pop\" : 39127} , \"smallestCity\" : { \"name\" : \"UNIV OF VERMONT\" , \"pop\" : 0} , \"state\" : \"VT\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"CRANSTON\" , \"pop\" : 176404} , \"smallestCity\" : { \"name\" : \"CLAYVILLE\" , \"pop\" : 45} , \"state\" : \"RI\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"MANCHESTER\" , \"pop\" : 106452} , \"smallestCity\" : { \"name\" : \"WEST NOTTINGHAM\" , \"pop\" : 27} , \"state\" : \"NH\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"NEWARK\" , \"pop\" : 275572} , \"smallestCity\" : { \"name\" : \"IMLAYSTOWN\" , \"pop\" : 17} , \"state\" : \"NJ\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"PORTLAND\" , \"pop\" : 63268} , \"smallestCity\" : { \"name\" : \"BUSTINS ISLAND\" , \"pop\" : 0} , \"state\" : \"ME\"} , " +
+        "{ \"biggestCity\" : { \"name\" : \"WORCESTER\" , \"pop\" : 169856} , \"smallestCity\" : { \"name\" : \"BUCKLAND\" , \"pop\" : 16} , \"state\" : \"MA\"}]"), resultAggregate);
     assertEquals(8, resultAggregate.size());
     assertEquals("BRIDGEPORT", Util.extractField(resultAggregate.get(0), "biggestCity.name"));
     assertEquals(141638, Util.extractField(resultAggregate.get(0), "biggestCity.pop"));
@@ -0,0 +1,92 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FongoAggregationCacheTest {
+
+  @Rule
+  public FongoRule fongoRule = new FongoRule(false);
+
+  private DBCollection collection;
+
+  private AggregationCache cache;
+
+  @Before
+  public void setup() {
+    fongoRule.getFongo().setAggregationCacheSize(2);
+    cache = fongoRule.getFongo().getAggregationCache();
+    collection = fongoRule.newCollection();
+    fongoRule.insertJSON(collection, "[{ _id: 1, k: \"a\" }, { _id: 2, k: \"b\" }, { _id: 3, k: \"a\" }]");
+  }
+
+  @Test
+  public void should_give_back_a_copy_of_the_results_while_the_collection_is_not_written() {
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: \"$k\", count: { $sum: 1 } } }");
+
+    List<DBObject> first = aggregate(group);
+    first.get(0).put("count", 42);
+    List<DBObject> second = aggregate(group);
+
+    assertEquals(fongoRule.parseList("[{ _id: \"a\", count: 2 }, { _id: \"b\", count: 1 }]"), second);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void should_compute_again_the_results_after_a_write() {
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: null, count: { $sum: 1 } } }");
+    aggregate(group);
+
+    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("$set", new BasicDBObject("k", "a")));
+    collection.insert(new BasicDBObject("_id", 4));
+
+    assertEquals(fongoRule.parseList("[{ _id: null, count: 4 }]"), aggregate(group));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  public void should_evict_the_least_recently_used_results() {
+    DBObject first = fongoRule.parseDBObject("{ $match: { k: \"a\" } }");
+    DBObject second = fongoRule.parseDBObject("{ $match: { k: \"b\" } }");
+    DBObject third = fongoRule.parseDBObject("{ $limit: 1 }");
+
+    aggregate(first);
+    aggregate(second);
+    aggregate(first);
+    aggregate(third);
+    aggregate(first);
+    aggregate(second);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(4, cache.getMissCount());
+    assertEquals(2, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void should_not_cache_the_pipelines_writing_a_collection() {
+    DBObject out = new BasicDBObject("$out", "target");
+
+    aggregate(out);
+    fongoRule.getDB().getCollection("target").drop();
+    aggregate(out);
+
+    assertEquals(3, fongoRule.getDB().getCollection("target").count());
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DBObject> aggregate(DBObject stage) {
+    return (List<DBObject>) collection.aggregate(stage).getCommandResult().get("result");
+  }
+}
@@ -0,0 +1,89 @@
+package com.github.fakemongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import org.bson.BasicBSONEncoder;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FongoDumpTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void should_import_an_exported_dump() throws Exception {
+    // Given
+    Fongo fongo = new Fongo("test");
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    Date date = new Date();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i).append("date", date).append("sub", new BasicDBObject("a", i)).append("s", Integer.toString(100 - i)));
+    }
+    fongo.getDB("other").getCollection("coll").insert(new BasicDBObject("_id", "x"));
+    File directory = folder.newFolder("dump");
+
+    // When
+    fongo.exportDump(directory);
+
+    // Then
+    assertThat(new File(directory, "db/coll.bson")).exists();
+    assertThat(new File(directory, "db/coll.metadata.json")).exists();
+    for (StorageEngine storageEngine : new StorageEngine[]{StorageEngine.heap(), StorageEngine.offHeap()}) {
+      Fongo imported = new Fongo("imported", storageEngine);
+      imported.importDump(directory);
+      DBCollection importedCollection = imported.getDB("db").getCollection("coll");
+      assertThat(importedCollection.count()).isEqualTo(100);
+      assertThat(importedCollection.findOne(new BasicDBObject("n", 42))).isEqualTo(new BasicDBObject("_id", 42).append("n", 42).append("date", date).append("sub", new BasicDBObject("a", 42)).append("s", "58"));
+      assertThat(importedCollection.getIndexInfo()).hasSize(2);
+      assertThat(imported.getDB("other").getCollection("coll").findOne()).isEqualTo(new BasicDBObject("_id", "x"));
+      try {
+        importedCollection.insert(new BasicDBObject("n", 1));
+        fail("unique index must be imported");
+      } catch (MongoException e) {
+        assertThat(e.getCode()).isEqualTo(11001);
+      }
+    }
+  }
+
+  @Test
+  public void should_import_the_directory_of_a_database_replacing_its_collections() throws Exception {
+    // Given
+    File directory = folder.newFolder("mydb");
+    write(new File(directory, "coll.bson"), new BasicDBObject("a", 1).append("_id", 1), new BasicDBObject("_id", 2).append("a", 2));
+    // MongoDB 2.0 and before.
+    write(new File(directory, "system.indexes.bson"), new BasicDBObject("v", 1).append("key", new BasicDBObject("a", 1)).append("ns", "mydb.coll").append("name", "a_1"));
+    Fongo fongo = new Fongo("test");
+    fongo.getDB("mydb").getCollection("coll").insert(new BasicDBObject("_id", 3));
+
+    // When
+    fongo.importDump(directory);
+
+    // Then
+    DBCollection collection = fongo.getDB("mydb").getCollection("coll");
+    assertThat(collection.find().toArray()).containsExactly((DBObject) new BasicDBObject("_id", 1).append("a", 1), new BasicDBObject("_id", 2).append("a", 2));
+    assertThat(collection.getIndexInfo()).hasSize(2);
+  }
+
+  private static void write(File file, DBObject... documents) throws IOException {
+    OutputStream output = new FileOutputStream(file);
+    try {
+      for (DBObject document : documents) {
+        output.write(new BasicBSONEncoder().encode(document));
+      }
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.github.fakemongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FongoSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void should_restore_databases_collections_and_indexes() throws Exception {
+    // Given
+    Fongo fongo = new Fongo("test");
+    DB db = fongo.getDB("db");
+    DBCollection collection = db.getCollection("coll");
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    Date date = new Date();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i).append("date", date).append("sub", new BasicDBObject("a", i)));
+    }
+    fongo.getDB("other").getCollection("coll").insert(new BasicDBObject("_id", "x"));
+    File file = folder.newFile("fongo.snapshot");
+
+    // When
+    fongo.snapshot(file);
+    Fongo restored = new Fongo("restored");
+    restored.restore(file);
+
+    // Then
+    assertThat(restored.getDatabaseNames()).containsOnly("db", "other");
+    DBCollection restoredCollection = restored.getDB("db").getCollection("coll");
+    assertThat(restoredCollection.count()).isEqualTo(100);
+    assertThat(restoredCollection.findOne(new BasicDBObject("n", 42))).isEqualTo(new BasicDBObject("_id", 42).append("n", 42).append("date", date).append("sub", new BasicDBObject("a", 42)));
+    assertThat(restoredCollection.getIndexInfo()).hasSize(2);
+    assertThat(restored.getDB("other").getCollection("coll").findOne()).isEqualTo(new BasicDBObject("_id", "x"));
+    try {
+      restoredCollection.insert(new BasicDBObject("n", 1));
+      fail("unique index must be restored");
+    } catch (MongoException e) {
+      assertThat(e.getCode()).isEqualTo(11001);
+    }
+  }
+
+  @Test
+  public void should_restore_replace_existing_databases() throws Exception {
+    // Given
+    Fongo fongo = new Fongo("test");
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.insert(new BasicDBObject("_id", 1));
+    File file = folder.newFile("fongo.snapshot");
+    fongo.snapshot(file);
+    collection.insert(new BasicDBObject("_id", 2));
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("a", 1)));
+    fongo.getDB("added").getCollection("coll").insert(new BasicDBObject("_id", 1));
+
+    // When
+    fongo.restore(file);
+
+    // Then
+    assertThat(fongo.getDatabaseNames()).containsOnly("db");
+    assertThat(fongo.getDB("db").getCollection("coll").find().toArray()).containsExactly((DBObject) new BasicDBObject("_id", 1));
+  }
+
+  @Test(timeout = 60000)
+  public void should_snapshot_all_the_collections_at_one_point_in_time() throws Exception {
+    // Given : each document is inserted in a, then in b.
+    Fongo fongo = new Fongo("test");
+    final DBCollection a = fongo.getDB("db").getCollection("a");
+    final DBCollection b = fongo.getDB("db").getCollection("b");
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for (int i = 0; i < 20000; i++) {
+      documents.add(new BasicDBObject("_id", -i - 1));
+    }
+    a.insert(documents);
+    b.insert(documents);
+    final AtomicBoolean stop = new AtomicBoolean();
+    Thread writer = new Thread() {
+      public void run() {
+        for (int i = 0; i < 50000 && !stop.get(); i++) {
+          a.insert(new BasicDBObject("_id", i));
+          b.insert(new BasicDBObject("_id", i));
+        }
+      }
+    };
+    writer.start();
+
+    try {
+      for (int i = 0; i < 10; i++) {
+        // When
+        File file = folder.newFile("fongo" + i + ".snapshot");
+        fongo.snapshot(file);
+
+        // Then
+        Fongo restored = new Fongo("restored");
+        restored.restore(file);
+        long difference = restored.getDB("db").getCollection("a").count() - restored.getDB("db").getCollection("b").count();
+        assertThat(difference).isIn(0L, 1L);
+      }
+    } finally {
+      stop.set(true);
+      writer.join();
+    }
+  }
+}
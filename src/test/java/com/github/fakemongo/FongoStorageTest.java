@@ -0,0 +1,460 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FongoStorageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private DBCollection collection;
+
+  @Before
+  public void setUp() {
+    collection = new Fongo("test", StorageEngine.bson()).getDB("db").getCollection("coll");
+  }
+
+  @Test
+  public void should_find_back_inserted_documents() {
+    // Given
+    Date date = new Date();
+    collection.insert(new BasicDBObject("name", "fongo").append("_id", 1).append("date", date)
+        .append("address", new BasicDBObject("city", "Paris").append("zip", "75001"))
+        .append("tags", Util.list("a", new BasicDBObject("b", 2))));
+
+    // When
+    DBObject result = collection.findOne();
+
+    // Then
+    assertThat(result).isEqualTo(new BasicDBObject("_id", 1).append("name", "fongo").append("date", date)
+        .append("address", new BasicDBObject("city", "Paris").append("zip", "75001"))
+        .append("tags", Util.list("a", new BasicDBObject("b", 2))));
+    assertThat(result).isInstanceOf(BasicDBObject.class);
+    assertThat(result.get("address")).isInstanceOf(BasicDBObject.class);
+    assertThat(result.get("tags")).isInstanceOf(BasicDBList.class);
+  }
+
+  @Test
+  public void should_convert_values_like_mongodb() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("f", 1.5F).append("c", 'c').append("array", new String[]{"a", "b"}));
+
+    // When
+    DBObject result = collection.findOne();
+
+    // Then
+    assertThat(result).isEqualTo(new BasicDBObject("_id", 1).append("f", 1.5D).append("c", "c").append("array", Util.list("a", "b")));
+  }
+
+  @Test
+  public void should_update_and_remove_documents() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("n", 1).append("sub", new BasicDBObject("a", 1)));
+    collection.insert(new BasicDBObject("_id", 2).append("n", 2));
+
+    // When
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$inc", new BasicDBObject("n", 10)).append("$set", new BasicDBObject("sub.b", 2)));
+    collection.remove(new BasicDBObject("_id", 2));
+
+    // Then
+    assertThat(collection.find().toArray()).containsExactly(
+        new BasicDBObject("_id", 1).append("n", 11).append("sub", new BasicDBObject("a", 1).append("b", 2)));
+  }
+
+  @Test
+  public void should_result_not_share_values_with_stored_documents() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("sub", new BasicDBObject("a", 1)));
+    DBObject result = collection.findOne();
+
+    // When
+    ((DBObject) result.get("sub")).put("a", 2);
+    result.put("b", 3);
+
+    // Then
+    assertThat(collection.findOne()).isEqualTo(new BasicDBObject("_id", 1).append("sub", new BasicDBObject("a", 1)));
+  }
+
+  @Test
+  public void should_use_indexes() {
+    // Given
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    collection.insert(new BasicDBObject("_id", 1).append("n", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("n", 2));
+
+    // When
+    try {
+      collection.insert(new BasicDBObject("_id", 3).append("n", 1));
+      fail("should be a duplicate key");
+    } catch (MongoException e) {
+      // Then
+      assertThat(e.getCode()).isEqualTo(11001);
+    }
+    assertThat(collection.find(new BasicDBObject("n", 2)).toArray()).containsExactly(new BasicDBObject("_id", 2).append("n", 2));
+    assertThat(collection.count()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_find_with_near() {
+    // Given
+    collection.createIndex(new BasicDBObject("loc", "2d"));
+    collection.insert(new BasicDBObject("_id", 1).append("loc", Util.list(10D, 10D)));
+    collection.insert(new BasicDBObject("_id", 2).append("loc", Util.list(1D, 1D)));
+
+    // When
+    DBObject near = new BasicDBObject("loc", new BasicDBObject("$near", Util.list(0D, 0D)));
+
+    // Then
+    assertThat(collection.find(near).toArray()).containsExactly(
+        new BasicDBObject("_id", 2).append("loc", Util.list(1D, 1D)),
+        new BasicDBObject("_id", 1).append("loc", Util.list(10D, 10D)));
+  }
+
+  @Test
+  public void should_find_and_modify_return_copies() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("n", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("n", 2));
+
+    // When
+    DBObject before = collection.findAndModify(new BasicDBObject("_id", 1), new BasicDBObject("$inc", new BasicDBObject("n", 1)));
+    DBObject removed = collection.findAndRemove(new BasicDBObject("_id", 2));
+
+    // Then
+    assertThat(before).isEqualTo(new BasicDBObject("_id", 1).append("n", 1));
+    assertThat(removed).isInstanceOf(BasicDBObject.class).isEqualTo(new BasicDBObject("_id", 2).append("n", 2));
+    assertThat(collection.find().toArray()).containsExactly(new BasicDBObject("_id", 1).append("n", 2));
+  }
+
+  @Test
+  public void should_keep_dbref() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("ref", new DBRef(collection.getDB(), "other", 2)));
+
+    // When
+    DBObject result = collection.findOne();
+
+    // Then
+    DBRef ref = (DBRef) result.get("ref");
+    assertThat(ref.getRef()).isEqualTo("other");
+    assertThat(ref.getId()).isEqualTo(2);
+    assertThat(ref.getDB()).isSameAs(collection.getDB());
+  }
+
+  @Test
+  public void should_drop_collection() {
+    // Given
+    collection.insert(Arrays.<DBObject>asList(new BasicDBObject("_id", 1), new BasicDBObject("_id", 2)));
+
+    // When
+    collection.drop();
+
+    // Then
+    assertThat(collection.count()).isEqualTo(0);
+    assertThat(collection.getDB().getCollectionNames()).doesNotContain("coll");
+  }
+
+  @Test
+  public void should_off_heap_store_reuse_space_of_updates_and_removes() {
+    // Given
+    DBCollection offHeap = new Fongo("test", StorageEngine.offHeap(512)).getDB("db").getCollection("coll");
+    for (int i = 0; i < 100; i++) {
+      offHeap.insert(new BasicDBObject("_id", i).append("text", "document " + i));
+    }
+
+    // When
+    for (int i = 0; i < 100; i++) {
+      if (i % 10 != 0) {
+        offHeap.remove(new BasicDBObject("_id", i));
+      } else {
+        offHeap.update(new BasicDBObject("_id", i), new BasicDBObject("$set", new BasicDBObject("text", "a longer text for document " + i)));
+      }
+    }
+    for (int i = 100; i < 110; i++) {
+      offHeap.insert(new BasicDBObject("_id", i).append("text", "document " + i));
+    }
+
+    // Then
+    List<DBObject> expected = new ArrayList<DBObject>();
+    for (int i = 0; i < 100; i += 10) {
+      expected.add(new BasicDBObject("_id", i).append("text", "a longer text for document " + i));
+    }
+    for (int i = 100; i < 110; i++) {
+      expected.add(new BasicDBObject("_id", i).append("text", "document " + i));
+    }
+    assertThat(offHeap.find().sort(new BasicDBObject("_id", 1)).toArray()).isEqualTo(expected);
+  }
+
+  @Test
+  public void should_off_heap_store_handle_documents_bigger_than_a_slab() {
+    // Given
+    DBCollection offHeap = new Fongo("test", StorageEngine.offHeap(64)).getDB("db").getCollection("coll");
+    char[] text = new char[1000];
+    Arrays.fill(text, 'a');
+
+    // When
+    offHeap.insert(new BasicDBObject("_id", 1).append("text", new String(text)));
+    offHeap.insert(new BasicDBObject("_id", 2).append("text", "b"));
+
+    // Then
+    assertThat(offHeap.findOne(new BasicDBObject("_id", 1)).get("text")).isEqualTo(new String(text));
+    assertThat(offHeap.findOne(new BasicDBObject("_id", 2)).get("text")).isEqualTo("b");
+  }
+
+  @Test
+  public void should_compact_command_keep_documents() {
+    // Given
+    DBCollection offHeap = new Fongo("test", StorageEngine.offHeap(256)).getDB("db").getCollection("coll");
+    offHeap.createIndex(new BasicDBObject("n", 1));
+    for (int i = 0; i < 20; i++) {
+      offHeap.insert(new BasicDBObject("_id", i).append("n", i % 2));
+    }
+    offHeap.remove(new BasicDBObject("n", 0));
+
+    // When
+    CommandResult result = offHeap.getDB().command(new BasicDBObject("compact", "coll"));
+
+    // Then
+    result.throwOnError();
+    assertThat(offHeap.count(new BasicDBObject("n", 1))).isEqualTo(10);
+    assertThat(offHeap.findOne(new BasicDBObject("_id", 19))).isEqualTo(new BasicDBObject("_id", 19).append("n", 1));
+  }
+
+  @Test
+  public void should_mapped_store_find_back_databases_collections_and_indexes() throws Exception {
+    // Given
+    File directory = folder.newFolder("mapped");
+    DB db = new Fongo("test", StorageEngine.mapped(directory, 4096)).getDB("db");
+    DBCollection mapped = db.getCollection("coll");
+    mapped.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    for (int i = 0; i < 100; i++) {
+      mapped.insert(new BasicDBObject("_id", i).append("n", i).append("text", "document " + i));
+    }
+    mapped.remove(new BasicDBObject("n", new BasicDBObject("$gte", 50)));
+    mapped.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("text", "updated")));
+    db.getCollection("other").insert(new BasicDBObject("_id", 1));
+
+    // When
+    Fongo reopened = new Fongo("test", StorageEngine.mapped(directory, 4096));
+
+    // Then
+    assertThat(reopened.getDatabaseNames()).containsExactly("db");
+    DB reopenedDb = reopened.getDB("db");
+    assertThat(reopenedDb.getCollectionNames()).contains("coll", "other");
+    DBCollection reopenedColl = reopenedDb.getCollection("coll");
+    assertThat(reopenedColl.count()).isEqualTo(50);
+    assertThat(reopenedColl.findOne(new BasicDBObject("_id", 1))).isEqualTo(new BasicDBObject("_id", 1).append("n", 1).append("text", "updated"));
+    assertThat(reopenedColl.getIndexInfo()).hasSize(2);
+    try {
+      reopenedColl.insert(new BasicDBObject("_id", 100).append("n", 2));
+      fail("unique index must be rebuilt");
+    } catch (MongoException e) {
+      assertThat(e.getCode()).isEqualTo(11001);
+    }
+  }
+
+  @Test
+  public void should_mapped_store_delete_files_of_dropped_collections() throws Exception {
+    // Given
+    File directory = folder.newFolder("mapped");
+    DB db = new Fongo("test", StorageEngine.mapped(directory, 4096)).getDB("db");
+    db.getCollection("coll").insert(new BasicDBObject("_id", 1));
+
+    // When
+    db.getCollection("coll").drop();
+
+    // Then
+    DB reopenedDb = new Fongo("test", StorageEngine.mapped(directory, 4096)).getDB("db");
+    assertThat(reopenedDb.getCollectionNames()).doesNotContain("coll");
+    assertThat(reopenedDb.getCollection("coll").count()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_journal_be_replayed_after_a_crash() throws Exception {
+    // Given
+    File directory = folder.newFolder("journaled");
+    StorageEngine engine = StorageEngine.journaled(directory, 4096, 60000);
+    DBCollection journaled = new Fongo("test", engine).getDB("db").getCollection("coll");
+    journaled.createIndex(new BasicDBObject("n", 1));
+    for (int i = 0; i < 50; i++) {
+      journaled.insert(new BasicDBObject("_id", i).append("n", i), WriteConcern.NORMAL);
+    }
+    journaled.remove(new BasicDBObject("n", new BasicDBObject("$gte", 40)), WriteConcern.NORMAL);
+    journaled.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("n", 100)), false, false, WriteConcern.JOURNALED);
+
+    // When : only the journal is on disk, the last entry partially written.
+    File crashed = folder.newFolder("crashed");
+    copy(new File(directory, "fongo.journal"), new File(crashed, "fongo.journal"));
+    FileOutputStream partial = new FileOutputStream(new File(crashed, "fongo.journal"), true);
+    partial.write(new byte[]{0, 0, 1, 0, 1, 2});
+    partial.close();
+    StorageEngine recovered = StorageEngine.journaled(crashed, 4096, 60000);
+    DBCollection replayed = new Fongo("test", recovered).getDB("db").getCollection("coll");
+
+    // Then
+    assertThat(replayed.count()).isEqualTo(40);
+    assertThat(replayed.findOne(new BasicDBObject("n", 100))).isEqualTo(new BasicDBObject("_id", 1).append("n", 100));
+    assertThat(replayed.getIndexInfo()).hasSize(2);
+    engine.close();
+    recovered.close();
+  }
+
+  @Test
+  public void should_journal_be_written_before_the_files() throws Exception {
+    // Given
+    File directory = folder.newFolder("journaled");
+    StorageEngine engine = StorageEngine.journaled(directory, 4096, 60000);
+    DBCollection journaled = new Fongo("test", engine).getDB("db").getCollection("coll");
+    for (int i = 0; i < 10; i++) {
+      journaled.insert(new BasicDBObject("_id", i), WriteConcern.NORMAL);
+    }
+    File before = copyFiles(new File(directory, "db"), folder.newFolder("before"));
+
+    // When
+    journaled.insert(new BasicDBObject("_id", 10), WriteConcern.JOURNALED);
+
+    // Then : the files alone have the journaled writes only.
+    File after = copyFiles(new File(directory, "db"), folder.newFolder("after"));
+    assertThat(new Fongo("test", StorageEngine.mapped(before, 4096)).getDB("db").getCollection("coll").count()).isEqualTo(0);
+    assertThat(new Fongo("test", StorageEngine.mapped(after, 4096)).getDB("db").getCollection("coll").count()).isEqualTo(11);
+    engine.close();
+  }
+
+  @Test
+  public void should_journaled_store_map_its_files_again_after_many_writes() throws Exception {
+    // Given
+    File directory = folder.newFolder("journaled");
+    StorageEngine engine = StorageEngine.journaled(directory, 4096, 60000);
+    DBCollection journaled = new Fongo("test", engine).getDB("db").getCollection("coll");
+
+    // When : the slabs are mapped again every 1024 bytes written.
+    for (int i = 0; i < 500; i++) {
+      journaled.insert(new BasicDBObject("_id", i).append("s", "some text to fill the slabs"), WriteConcern.NORMAL);
+    }
+    journaled.remove(new BasicDBObject("_id", new BasicDBObject("$lt", 250)));
+
+    // Then
+    assertThat(journaled.count()).isEqualTo(250);
+    assertThat(journaled.findOne(new BasicDBObject("_id", 499))).isEqualTo(new BasicDBObject("_id", 499).append("s", "some text to fill the slabs"));
+    engine.close();
+    StorageEngine reopened = StorageEngine.journaled(directory, 4096, 60000);
+    assertThat(new Fongo("test", reopened).getDB("db").getCollection("coll").count()).isEqualTo(250);
+    reopened.close();
+  }
+
+  @Test
+  public void should_journaled_slabs_not_take_their_whole_size_in_memory() throws Exception {
+    // Given
+    StorageEngine engine = StorageEngine.journaled(folder.newFolder("journaled"));
+    DB db = new Fongo("test", engine).getDB("db");
+
+    // When : 64 collections of 64MB each.
+    for (int i = 0; i < 64; i++) {
+      db.getCollection("coll" + i).insert(new BasicDBObject("_id", i));
+    }
+
+    // Then
+    assertThat(db.getCollection("coll63").count()).isEqualTo(1);
+    engine.close();
+  }
+
+  @Test
+  public void should_journaled_write_fail_once_the_engine_is_closed() throws Exception {
+    // Given
+    StorageEngine engine = StorageEngine.journaled(folder.newFolder("journaled"), 4096, 60000);
+    DBCollection journaled = new Fongo("test", engine).getDB("db").getCollection("coll");
+    journaled.insert(new BasicDBObject("_id", 1));
+
+    // When
+    engine.close();
+
+    // Then
+    try {
+      journaled.insert(new BasicDBObject("_id", 2), WriteConcern.JOURNALED);
+      fail("the journal is closed");
+    } catch (FongoException e) {
+      assertThat(e.getMessage()).startsWith("journal closed");
+    }
+  }
+
+  @Test
+  public void should_mapped_engine_force_its_files_on_close() throws Exception {
+    // Given
+    File directory = folder.newFolder("mapped");
+    StorageEngine engine = StorageEngine.mapped(directory, 4096);
+    new Fongo("test", engine).getDB("db").getCollection("coll").insert(new BasicDBObject("_id", 1));
+
+    // When
+    engine.close();
+
+    // Then
+    assertThat(new Fongo("test", StorageEngine.mapped(directory, 4096)).getDB("db").getCollection("coll").count()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_journal_be_truncated_by_close() throws Exception {
+    // Given
+    File directory = folder.newFolder("journaled");
+    StorageEngine engine = StorageEngine.journaled(directory, 4096, 10);
+    DBCollection journaled = new Fongo("test", engine).getDB("db").getCollection("coll");
+    for (int i = 0; i < 20; i++) {
+      journaled.insert(new BasicDBObject("_id", i));
+    }
+
+    // When
+    engine.close();
+
+    // Then
+    assertThat(new File(directory, "fongo.journal").length()).isEqualTo(0);
+    StorageEngine reopened = StorageEngine.journaled(directory, 4096, 10);
+    assertThat(new Fongo("test", reopened).getDB("db").getCollection("coll").count()).isEqualTo(20);
+    reopened.close();
+  }
+
+  private static File copyFiles(File from, File to) throws IOException {
+    File db = new File(to, from.getName());
+    assertThat(db.mkdirs()).isTrue();
+    for (File file : from.listFiles()) {
+      copy(file, new File(db, file.getName()));
+    }
+    return to;
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    FileInputStream input = new FileInputStream(from);
+    FileOutputStream output = new FileOutputStream(to);
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+    } finally {
+      input.close();
+      output.close();
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.mongodb.QueryBuilder;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.util.JSON;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -2343,6 +2344,236 @@ public class FongoTest {
         .append("price", 50L));
   }
 
+  @Test
+  public void should_projected_result_not_share_values_with_stored_object() {
+    // Given
+    DBCollection collection = newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", new BasicDBObject("c", 1))).append("d", Util.list(1, 2)));
+
+    // When
+    DBObject result = collection.findOne(new BasicDBObject("_id", 1), new BasicDBObject("a.b", 1).append("d", 1));
+    ((DBObject) ((DBObject) result.get("a")).get("b")).put("c", 2);
+    ((BasicDBList) result.get("d")).add(3);
+
+    // Then
+    Assertions.assertThat(collection.findOne(new BasicDBObject("_id", 1))).isEqualTo(new BasicDBObject("_id", 1)
+        .append("a", new BasicDBObject("b", new BasicDBObject("c", 1))).append("d", Util.list(1, 2)));
+  }
+
+  @Test
+  public void should_update_by_id_not_share_values_with_caller() {
+    // Given
+    DBCollection collection = newCollection();
+    collection.insert(new BasicDBObject("_id", 1));
+    BasicDBObject update = new BasicDBObject("a", new BasicDBObject("b", 1));
+
+    // When
+    collection.update(new BasicDBObject("_id", 1), update);
+    ((DBObject) update.get("a")).put("b", 2);
+
+    // Then
+    Assertions.assertThat(collection.findOne(new BasicDBObject("_id", 1))).isEqualTo(new BasicDBObject("_id", 1)
+        .append("a", new BasicDBObject("b", 1)));
+    Assertions.assertThat(collection.findOne().keySet()).containsExactly("_id", "a");
+  }
+
+  @Test
+  public void should_fork_share_nothing_visible_with_its_parent() {
+    // Given
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.createIndex(new BasicDBObject("n", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i));
+    }
+    Fongo fork = fongo.fork();
+    DBCollection forkCollection = fork.getDB("db").getCollection("coll");
+
+    // When
+    forkCollection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("n", 100)));
+    forkCollection.remove(new BasicDBObject("_id", 2));
+    forkCollection.createIndex(new BasicDBObject("other", 1));
+    collection.insert(new BasicDBObject("_id", 10).append("n", 10));
+
+    // Then
+    Assertions.assertThat(forkCollection.count()).isEqualTo(9);
+    Assertions.assertThat(forkCollection.findOne(new BasicDBObject("n", 100))).isEqualTo(new BasicDBObject("_id", 1).append("n", 100));
+    Assertions.assertThat(forkCollection.findOne(new BasicDBObject("n", 10))).isNull();
+    Assertions.assertThat(forkCollection.getIndexInfo()).hasSize(3);
+    Assertions.assertThat(collection.count()).isEqualTo(11);
+    Assertions.assertThat(collection.findOne(new BasicDBObject("n", 1))).isEqualTo(new BasicDBObject("_id", 1).append("n", 1));
+    Assertions.assertThat(collection.findOne(new BasicDBObject("_id", 2))).isNotNull();
+    Assertions.assertThat(collection.getIndexInfo()).hasSize(2);
+  }
+
+  @Test(timeout = 16000)
+  public void should_fork_and_its_parent_run_near_queries_concurrently() throws Exception {
+    // Given
+    Fongo fongo = newFongo();
+    final DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.createIndex(new BasicDBObject("loc", "2d"));
+    for (int i = 0; i < 50; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("loc", Util.list((double) i, (double) i)));
+    }
+    final DBCollection forkCollection = fongo.fork().getDB("db").getCollection("coll");
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final CountDownLatch done = new CountDownLatch(2);
+
+    // When
+    for (final DBCollection coll : Arrays.asList(collection, forkCollection)) {
+      final boolean fromOrigin = coll == collection;
+      new Thread() {
+        public void run() {
+          try {
+            double origin = fromOrigin ? 0D : 49D;
+            DBObject near = new BasicDBObject("loc", new BasicDBObject("$near", Util.list(origin, origin)));
+            for (int i = 0; i < 200; i++) {
+              List<DBObject> found = coll.find(near).toArray();
+              assertEquals(50, found.size());
+              for (int j = 0; j < found.size(); j++) {
+                assertEquals(fromOrigin ? j : 49 - j, found.get(j).get("_id"));
+                assertEquals(new HashSet<String>(Arrays.asList("_id", "loc")), found.get(j).keySet());
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    // Then
+    assertTrue("Too long :-(", done.await(15, TimeUnit.SECONDS));
+    Assertions.assertThat(errors).isEmpty();
+    // The order of a find without sort doesn't depend on the previous $near.
+    Assertions.assertThat(forkCollection.find().next().get("_id")).isEqualTo(0);
+    Assertions.assertThat(collection.find().next().get("_id")).isEqualTo(0);
+  }
+
+  @Test
+  public void should_fork_be_refused_by_off_heap_storage() {
+    // Given
+    Fongo fongo = new Fongo("FongoTest", StorageEngine.offHeap());
+
+    // Then
+    exception.expect(FongoException.class);
+
+    // When
+    fongo.fork();
+  }
+
+  @Test
+  public void should_rollback_undo_the_writes_since_the_mark() {
+    // Given
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i));
+    }
+    List<DBObject> before = collection.find().sort(new BasicDBObject("_id", 1)).toArray();
+    fongo.mark();
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("n", 100)));
+    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("$set", new BasicDBObject("n", 1)));
+    collection.remove(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 3).append("n", 3).append("other", true));
+    collection.insert(new BasicDBObject("_id", 10).append("n", 10));
+    collection.dropIndex("n_1");
+    collection.createIndex(new BasicDBObject("other", 1));
+    fongo.getDB("db").getCollection("created").insert(new BasicDBObject("a", 1));
+    fongo.getDB("other").getCollection("coll").insert(new BasicDBObject("a", 1));
+
+    // When
+    fongo.rollback();
+
+    // Then
+    Assertions.assertThat(collection.find().sort(new BasicDBObject("_id", 1)).toArray()).isEqualTo(before);
+    Assertions.assertThat(collection.findOne(new BasicDBObject("n", 1))).isEqualTo(new BasicDBObject("_id", 1).append("n", 1));
+    Assertions.assertThat(collection.getIndexInfo()).hasSize(2);
+    Assertions.assertThat(fongo.getDB("db").getCollectionNames()).doesNotContain("created");
+    Assertions.assertThat(fongo.getDatabaseNames()).containsOnly("db");
+    exception.expect(DuplicateKeyException.class);
+    collection.insert(new BasicDBObject("n", 2));
+  }
+
+  @Test
+  public void should_rollback_keep_the_natural_order() {
+    // Given
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    for (int i = 0; i < 5; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i));
+    }
+    List<DBObject> before = collection.find().toArray();
+    fongo.mark();
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("n", 100)));
+    collection.remove(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 5));
+
+    // When
+    fongo.rollback();
+
+    // Then
+    Assertions.assertThat(collection.find().toArray()).isEqualTo(before);
+  }
+
+  @Test
+  public void should_rollback_of_a_drop_keep_the_natural_order() {
+    // Given
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    for (int i = 0; i < 5; i++) {
+      collection.insert(new BasicDBObject("_id", i));
+    }
+    List<DBObject> before = collection.find().toArray();
+    fongo.mark();
+    collection.drop();
+
+    // When
+    fongo.rollback();
+
+    // Then
+    Assertions.assertThat(fongo.getDB("db").getCollection("coll").find().toArray()).isEqualTo(before);
+  }
+
+  @Test
+  public void should_rollback_bring_back_a_dropped_database() {
+    // Given
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.insert(new BasicDBObject("_id", 1));
+    fongo.mark();
+    fongo.dropDatabase("db");
+    fongo.getDB("db").getCollection("coll").insert(new BasicDBObject("_id", 2));
+
+    // When
+    fongo.rollback();
+
+    // Then
+    Assertions.assertThat(fongo.getDB("db").getCollection("coll").find().toArray()).containsOnly(new BasicDBObject("_id", 1));
+  }
+
+  @Test
+  public void should_bulk_insert_leave_an_empty_collection_empty_on_duplicate_key() {
+    // Given
+    FongoDBCollection collection = (FongoDBCollection) newCollection();
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+    List<DBObject> documents = Arrays.<DBObject>asList(new BasicDBObject("_id", 1).append("n", 1),
+        new BasicDBObject("_id", 2).append("n", 2), new BasicDBObject("_id", 3).append("n", 1));
+
+    // When
+    try {
+      collection.bulkInsert(documents.iterator());
+      fail("duplicate key expected");
+    } catch (DuplicateKeyException e) {
+      // Then
+      Assertions.assertThat(collection.count()).isEqualTo(0);
+      Assertions.assertThat(collection.findOne(new BasicDBObject("n", 2))).isNull();
+    }
+  }
+
   static class Seq {
     Object[] data;
 
@@ -0,0 +1,67 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+public class JsonStreamTest {
+
+  @Test
+  public void testReadLikeJsonParse() {
+    String json = "{ _id: { $oid: '53d5c4d1e4b0a1c4a9d6b0a8' }, 'date': { \"$date\": \"2014-07-28T00:00:00.000Z\" }, "
+        + "int: -12, long: 12345678901, double: 1.5e3, nan: NaN, t: true, f: false, n: null, "
+        + "s: \"a \\\"quoted\\\" \\u00e9\\n\", array: [1, [2, {a: 3}], []], empty: {} }";
+
+    assertEquals(JSON.parse(json), read(json).get(0));
+  }
+
+  @Test
+  public void testReadDocumentsOneAfterTheOther() {
+    assertEquals(JSON.parse("[{a: 1}, {a: 2}, {a: 3}]"), read("{a: 1}\n{a: 2}\r\n\n  {a: 3}\n"));
+  }
+
+  @Test
+  public void testReadAnArray() {
+    assertEquals(JSON.parse("[{a: 1}, {a: 2}]"), read(" [ {a: 1} ,\n{a: 2} ] "));
+    assertEquals(0, read("[]").size());
+    assertEquals(0, read("  ").size());
+  }
+
+  @Test
+  public void testReadZips() throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/zips.json"), "UTF-8"));
+    JsonStream stream = new JsonStream(new InputStreamReader(getClass().getResourceAsStream("/zips.json"), "UTF-8"));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      assertEquals(JSON.parse(line), stream.next());
+    }
+    assertFalse(stream.hasNext());
+  }
+
+  @Test(expected = JSONParseException.class)
+  public void testUnterminatedDocument() {
+    read("{a: 1}\n{a: ");
+  }
+
+  @Test(expected = JSONParseException.class)
+  public void testNotADocument() {
+    read("{a: 1} 2");
+  }
+
+  private static List<DBObject> read(String json) {
+    List<DBObject> documents = new ArrayList<DBObject>();
+    JsonStream stream = new JsonStream(new StringReader(json));
+    while (stream.hasNext()) {
+      documents.add(stream.next());
+    }
+    return documents;
+  }
+}
@@ -0,0 +1,56 @@
+package com.github.fakemongo.junit;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import java.net.UnknownHostException;
+import org.assertj.core.api.Assertions;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FongoRuleBaselineTest {
+
+  @ClassRule
+  public static FongoRule FONGO = new FongoRule() {
+    @Override
+    protected void before() throws UnknownHostException {
+      super.before();
+      DBCollection collection = newCollection("fixture");
+      for (int i = 0; i < 100; i++) {
+        collection.insert(new BasicDBObject("_id", i).append("n", i));
+      }
+    }
+  }.baseline();
+
+  @Rule
+  public FongoRule fongoRule = FONGO;
+
+  // Each test sees the fixture, whatever the others wrote.
+  @Test
+  public void should_fixture_be_found_after_an_update() {
+    DBCollection collection = fongoRule.newCollection("fixture");
+    Assertions.assertThat(collection.count()).isEqualTo(100);
+    Assertions.assertThat(collection.findOne(new BasicDBObject("_id", 1))).isEqualTo(new BasicDBObject("_id", 1).append("n", 1));
+
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("n", 100)));
+    fongoRule.newCollection("other").insert(new BasicDBObject("a", 1));
+  }
+
+  @Test
+  public void should_fixture_be_found_after_a_remove() {
+    DBCollection collection = fongoRule.newCollection("fixture");
+    Assertions.assertThat(collection.count()).isEqualTo(100);
+    Assertions.assertThat(collection.findOne(new BasicDBObject("_id", 1))).isEqualTo(new BasicDBObject("_id", 1).append("n", 1));
+    Assertions.assertThat(fongoRule.getDB().getCollectionNames()).doesNotContain("other");
+
+    collection.remove(new BasicDBObject("_id", new BasicDBObject("$lt", 50)));
+  }
+
+  @Test
+  public void should_fixture_be_found_after_a_drop() {
+    DBCollection collection = fongoRule.newCollection("fixture");
+    Assertions.assertThat(collection.count()).isEqualTo(100);
+
+    fongoRule.getDB().dropDatabase();
+  }
+}